@@ -0,0 +1,87 @@
+package com.partitio.vyos.controller;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Builds the controller beans without CDI, so that the benchmarks measure the
+ * reconcile path without starting a Quarkus runtime. Each bean gets what CDI
+ * would inject into its fields, the configuration keeps its defaults unless
+ * given here.
+ */
+final class BenchmarkBeans {
+
+    private BenchmarkBeans() {
+    }
+
+    static ControllerMetrics metrics(MeterRegistry registry) throws ReflectiveOperationException {
+        ControllerMetrics metrics = new ControllerMetrics();
+        inject(metrics, "registry", registry);
+        return metrics;
+    }
+
+    static VyOSController controller(ControllerMetrics metrics, VyOSRouter router)
+            throws ReflectiveOperationException {
+        VyOSController controller = new VyOSController();
+        inject(controller, "metrics", metrics);
+        inject(controller, "executor", Executors.newFixedThreadPool(1, runnable -> {
+            Thread thread = new Thread(runnable, "vyos-router");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        @SuppressWarnings("unchecked")
+        Map<String, VyOSRouter> routers = (Map<String, VyOSRouter>) field(controller, "routers").get(controller);
+        routers.put(router.getName(), router);
+        return controller;
+    }
+
+    static ReconcileQueue queue(ControllerMetrics metrics, int workerCount) throws ReflectiveOperationException {
+        ReconcileQueue queue = new ReconcileQueue();
+        inject(queue, "metrics", metrics);
+        inject(queue, "workerCount", workerCount);
+        queue.registerMetrics();
+        return queue;
+    }
+
+    static VyOSBindings bindings(KubernetesClient client) throws ReflectiveOperationException {
+        VyOSBindings bindings = new VyOSBindings();
+        inject(bindings, "client", client);
+        return bindings;
+    }
+
+    /**
+     * Builds a disabled watcher, every Service then has ready backends.
+     */
+    static EndpointSliceWatcher disabledEndpoints() throws ReflectiveOperationException {
+        EndpointSliceWatcher endpoints = new EndpointSliceWatcher();
+        inject(endpoints, "enabled", false);
+        return endpoints;
+    }
+
+    static ServiceWatcher watcher(VyOSController controller, KubernetesClient client, ReconcileQueue queue,
+            VyOSBindings bindings, EndpointSliceWatcher endpoints, ControllerMetrics metrics)
+            throws ReflectiveOperationException {
+        ServiceWatcher watcher = new ServiceWatcher();
+        inject(watcher, "vyosController", controller);
+        inject(watcher, "client", client);
+        inject(watcher, "reconcileQueue", queue);
+        inject(watcher, "bindings", bindings);
+        inject(watcher, "endpoints", endpoints);
+        inject(watcher, "metrics", metrics);
+        return watcher;
+    }
+
+    private static void inject(Object bean, String name, Object value) throws ReflectiveOperationException {
+        field(bean, name).set(bean, value);
+    }
+
+    private static Field field(Object bean, String name) throws ReflectiveOperationException {
+        Field field = bean.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+}
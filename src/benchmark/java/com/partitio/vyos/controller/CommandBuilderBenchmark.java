@@ -0,0 +1,96 @@
+package com.partitio.vyos.controller;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+/**
+ * Builds the /configure payload of a Service with the given number of ports,
+ * with the MessageFormat templates the controller used to have and with the
+ * typed rule builders.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBuilderBenchmark {
+
+    private static final String RULESET = "OUTSIDE-IN";
+    private static final String PUBLIC_IP = "203.0.113.10";
+    private static final String IP = "10.0.0.10";
+    private static final String PRIVATE_NETWORK = "192.168.199.0/24";
+    private static final String NAME = "default/my-service";
+
+    // 0 : rulesetname, 1 : rulenumber, 2 : IP address, 3 : port, 4 : name
+    private static final String LEGACY_FIREWALL = "['{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"action\",\"accept\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"destination\",\"address\",\"{2}\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"destination\",\"port\",\"{3,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"description\",\"Auto Kube Firewall rule for {4}, IP : {2}, port : {3,number,#}\"]'}']";
+    // 0 : rulenumber, 1 : port, 2 : destinationaddress, 3 : translationaddress, 4 :
+    // inbound-interface, 5 : service name
+    private static final String LEGACY_DESTINATION_NAT = "['{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"address\",\"{2}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"address\",\"{3}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"inbound-interface\",\"{4}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"description\",\"Auto Kube Nat rule for {5}, IP : {3}, port : {1,number,#}, publicIP : {2}\"]'}']";
+    // 0 : rulenumber, 1 : port, 2 : destinationaddress, 3 : translationaddress, 4 :
+    // inbound-interface, 5 : service name
+    private static final String LEGACY_HAIRPIN_DESTINATION_NAT = "['{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"address\",\"{2}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"address\",\"{3}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"inbound-interface\",\"{4}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"description\",\"Auto Kube Hairpin Nat rule for {5}, IP : {3}, port : {1,number,#}, publicIP : {2}\"]'}']";
+    // 0 : rulenumber, 1 : privatenetwork (192.168.199.0/24), 2 : port, 3 :
+    // destinationaddress, 4 : outbound-interface, 5 : service name
+    private static final String LEGACY_HAIRPIN_SOURCE_NAT = "['{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"source\",\"address\",\"{1}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"destination\",\"port\",\"{2,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"destination\",\"address\",\"{3}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"translation\",\"address\",\"masquerade\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"outbound-interface\",\"{4}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"description\",\"Auto Kube Hairpin Nat Source rule for {5}, IP : {3}, port : {2,number,#}, private network : {1}\"]'}']";
+
+    @Param({ "1", "10", "100" })
+    public int ports;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Benchmark
+    public String legacyTemplates() throws IOException {
+        ArrayNode operations = mapper.createArrayNode();
+        for (int port = 1; port <= ports; port++) {
+            int number = 200 + port;
+            add(operations, MessageFormat.format(LEGACY_FIREWALL, RULESET, number, IP, port, NAME));
+            add(operations, MessageFormat.format(LEGACY_DESTINATION_NAT, number, port, PUBLIC_IP, IP, "eth0", NAME));
+            add(operations,
+                    MessageFormat.format(LEGACY_HAIRPIN_DESTINATION_NAT, number, port, PUBLIC_IP, IP, "eth1", NAME));
+            add(operations,
+                    MessageFormat.format(LEGACY_HAIRPIN_SOURCE_NAT, number, PRIVATE_NETWORK, port, IP, "eth1", NAME));
+        }
+        return operations.toString();
+    }
+
+    private void add(ArrayNode operations, String command) throws IOException {
+        JsonNode node = mapper.readTree(command);
+        node.forEach(operations::add);
+    }
+
+    @Benchmark
+    public String ruleBuilders() throws IOException {
+        VyOSCommandBatch batch = new VyOSCommandBatch();
+        for (int port = 1; port <= ports; port++) {
+            int number = 200 + port;
+            String numberString = Integer.toString(number);
+            String portString = Integer.toString(port);
+            batch.setRule(new String[] { "firewall", "name", RULESET, "rule", numberString },
+                    VyOSRules.firewall(number, IP, "tcp", portString, NAME));
+            batch.setRule(new String[] { "nat", "destination", "rule", numberString },
+                    VyOSRules.destinationNat(number, PUBLIC_IP, IP, "tcp", portString, "eth0", NAME));
+            batch.setRule(new String[] { "nat", "destination", "rule", numberString },
+                    VyOSRules.hairpinDestinationNat(number, PUBLIC_IP, IP, "tcp", portString, "eth1", NAME));
+            batch.setRule(new String[] { "nat", "source", "rule", numberString },
+                    VyOSRules.hairpinSourceNat(number, PRIVATE_NETWORK, IP, "tcp", portString, "eth1", NAME));
+        }
+        return VyOSCommandBatch.toJson(batch.getOperations());
+    }
+}
@@ -0,0 +1,217 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import io.fabric8.kubernetes.api.model.IntOrString;
+import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.api.model.ServiceBuilder;
+import io.fabric8.kubernetes.api.model.ServicePort;
+import io.fabric8.kubernetes.api.model.ServicePortBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesCrudDispatcher;
+import io.fabric8.kubernetes.client.server.mock.KubernetesMockServer;
+import io.fabric8.mockwebserver.Context;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Drives synthetic Service add, update and delete events through
+ * {@link ServiceWatcher} and the reconcile queue, against a
+ * {@link VyOSSimulator} and a fabric8 CRUD mock API server. Each phase reports
+ * events per second, VyOS commits per Service and the time until the
+ * simulated router holds the expected rules.
+ *
+ * <p>
+ * {@code mvn -Pbenchmark test-compile exec:java@load-benchmark -Dexec.args="2000 20 4"}
+ * runs 2000 Services with 20 ms commits and 4 queue workers.
+ *
+ * <p>
+ * The beans are built by {@link BenchmarkBeans}, only the reconcile path is
+ * measured.
+ */
+public class ReconcileLoadBenchmark {
+
+    private static final String API_KEY = "benchmark";
+    private static final String RULESET = "OUTSIDE-IN";
+    private static final String WAN = "eth0";
+    private static final long PHASE_TIMEOUT_MILLIS = 600_000;
+
+    private final int serviceCount;
+    private final VyOSSimulator simulator;
+    private final ServiceWatcher watcher;
+    private final ReconcileQueue queue;
+
+    private ReconcileLoadBenchmark(int serviceCount, VyOSSimulator simulator, ServiceWatcher watcher,
+            ReconcileQueue queue) {
+        this.serviceCount = serviceCount;
+        this.simulator = simulator;
+        this.watcher = watcher;
+        this.queue = queue;
+    }
+
+    public static void main(String... args) throws Exception {
+        int serviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long commitLatency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        VyOSSimulator simulator = new VyOSSimulator(API_KEY, commitLatency);
+        String url = simulator.start(0);
+        KubernetesMockServer kubernetes = new KubernetesMockServer(new Context(), new MockWebServer(),
+                new HashMap<>(), new KubernetesCrudDispatcher(), false);
+        kubernetes.init();
+        KubernetesClient client = kubernetes.createClient();
+        try {
+            ReconcileLoadBenchmark benchmark = wire(serviceCount, simulator, url, client, workers);
+            System.out.println("Load benchmark : " + serviceCount + " Services, " + commitLatency
+                    + " ms commits, " + workers + " workers");
+            benchmark.run(client);
+        } finally {
+            client.close();
+            kubernetes.destroy();
+            simulator.stop();
+        }
+    }
+
+    private static ReconcileLoadBenchmark wire(int serviceCount, VyOSSimulator simulator, String url,
+            KubernetesClient client, int workers) throws Exception {
+        ControllerMetrics metrics = BenchmarkBeans.metrics(new SimpleMeterRegistry());
+
+        VyOSRouterSettings settings = new VyOSRouterSettings();
+        settings.name = VyOSController.DEFAULT_ROUTER;
+        settings.apiKey = API_KEY;
+        settings.ruleStart = 1;
+        settings.ruleEnd = 9 * serviceCount + 100;
+        settings.firewallRulesetName = RULESET;
+        settings.wanInterface = WAN;
+        settings.lanInterface = "eth1";
+        settings.ipRange = "100.64.0.0/16";
+        settings.netmask = 16;
+        settings.privateNetwork = "10.0.0.0/16";
+        settings.batchMaxOperations = 1000;
+        settings.batchMaxBytes = 262144;
+        VyOSClient vyosClient = new VyOSClient(settings.name, new SimulatorQuerier(url), API_KEY, 3, 200, 5000,
+                0.5, 120000, metrics);
+        VyOSRouter router = new VyOSRouter(settings, vyosClient, metrics);
+
+        VyOSController controller = BenchmarkBeans.controller(metrics, router);
+        controller.refreshAllocations();
+
+        ReconcileQueue queue = BenchmarkBeans.queue(metrics, workers);
+
+        VyOSBindings bindings = BenchmarkBeans.bindings(client);
+        bindings.start(Optional.empty()).get();
+
+        EndpointSliceWatcher endpoints = BenchmarkBeans.disabledEndpoints();
+
+        ServiceWatcher watcher = BenchmarkBeans.watcher(controller, client, queue, bindings, endpoints, metrics);
+        queue.start(watcher::reconcile);
+        return new ReconcileLoadBenchmark(serviceCount, simulator, watcher, queue);
+    }
+
+    private void run(KubernetesClient client) throws Exception {
+        List<Service> services = new ArrayList<>();
+        for (int i = 0; i < serviceCount; i++) {
+            Service service = service(i, "1", 80, 443);
+            // Bindings are owned by the Services, they have to exist
+            client.services().inNamespace(service.getMetadata().getNamespace()).resource(service).create();
+            services.add(service);
+        }
+        phase("add", () -> services.forEach(watcher::onAdd),
+                snapshot -> ruleCount(snapshot) == 4 * serviceCount);
+
+        List<Service> updated = new ArrayList<>();
+        for (int i = 0; i < serviceCount; i++) {
+            updated.add(service(i, "2", 80, 443, 8443));
+        }
+        phase("update", () -> {
+            for (int i = 0; i < serviceCount; i++) {
+                watcher.onUpdate(updated.get(i), services.get(i));
+            }
+        }, snapshot -> natRulesWithPorts(snapshot, "80,443,8443") == serviceCount);
+
+        phase("delete", () -> updated.forEach(service -> watcher.onDelete(service, false)),
+                snapshot -> ruleCount(snapshot) == 0 && snapshot.addresses().isEmpty());
+        queue.stop();
+    }
+
+    /**
+     * Submits the events of a phase and waits until the simulated router holds
+     * the expected configuration.
+     */
+    private void phase(String name, Runnable events, Predicate<VyOSConfigSnapshot> converged) throws Exception {
+        long commitsBefore = simulator.commits();
+        long operationsBefore = simulator.operations();
+        long retrievesBefore = simulator.retrieves();
+        long start = System.nanoTime();
+        events.run();
+        long submitted = System.nanoTime();
+        while (!converged.test(snapshot())) {
+            if ((System.nanoTime() - start) / 1_000_000 > PHASE_TIMEOUT_MILLIS) {
+                throw new IllegalStateException("Phase " + name + " did not converge");
+            }
+            Thread.sleep(50);
+        }
+        long convergedAt = System.nanoTime();
+        double seconds = (convergedAt - start) / 1e9;
+        long commits = simulator.commits() - commitsBefore;
+        System.out.printf("%-7s converged in %8.2f s (events submitted in %6.3f s), %8.1f events/s, "
+                + "%6.3f commits/Service, %6.1f ops/commit, %6.3f retrieves/Service, queue coalesced %d%n",
+                name, seconds, (submitted - start) / 1e9, serviceCount / seconds,
+                (double) commits / serviceCount,
+                commits == 0 ? 0.0 : (double) (simulator.operations() - operationsBefore) / commits,
+                (double) (simulator.retrieves() - retrievesBefore) / serviceCount, queue.coalesced());
+    }
+
+    private VyOSConfigSnapshot snapshot() {
+        return new VyOSConfigSnapshot(simulator.config(), RULESET, WAN);
+    }
+
+    private static int ruleCount(VyOSConfigSnapshot snapshot) {
+        return snapshot.serviceRules().values().stream().mapToInt(List::size).sum();
+    }
+
+    private static long natRulesWithPorts(VyOSConfigSnapshot snapshot, String ports) {
+        return snapshot.serviceRules().values().stream()
+                .flatMap(List::stream)
+                .filter(rule -> snapshot.tag(rule).getKind() == RuleTag.Kind.NAT)
+                .filter(rule -> ports.equals(rule.getSetting("destination port")))
+                .count();
+    }
+
+    private static Service service(int index, String resourceVersion, int... ports) {
+        List<ServicePort> servicePorts = new ArrayList<>();
+        for (int port : ports) {
+            servicePorts.add(new ServicePortBuilder()
+                    .withName("port-" + port)
+                    .withProtocol("TCP")
+                    .withPort(port)
+                    .withTargetPort(new IntOrString(port))
+                    .build());
+        }
+        return new ServiceBuilder()
+                .withNewMetadata()
+                .withNamespace("benchmark")
+                .withName("service-" + index)
+                .withUid(UUID.nameUUIDFromBytes(("service-" + index).getBytes()).toString())
+                .withResourceVersion(resourceVersion)
+                .withAnnotations(new HashMap<>())
+                .endMetadata()
+                .withNewSpec()
+                .withType("LoadBalancer")
+                .withPorts(servicePorts)
+                .endSpec()
+                .withNewStatus()
+                .withNewLoadBalancer()
+                .addNewIngress()
+                .withIp("10.0." + (index / 250) + "." + (index % 250 + 1))
+                .endIngress()
+                .endLoadBalancer()
+                .endStatus()
+                .build();
+    }
+}
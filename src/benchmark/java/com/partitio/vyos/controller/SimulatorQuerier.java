@@ -0,0 +1,54 @@
+package com.partitio.vyos.controller;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+import io.smallrye.mutiny.Uni;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * {@link VyOSQuerier} over the JDK HTTP client, so that the harness needs no
+ * Quarkus runtime to reach the {@link VyOSSimulator}. Like the REST client, it
+ * fails with a WebApplicationException on error statuses.
+ */
+public class SimulatorQuerier implements VyOSQuerier {
+
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final String baseUrl;
+
+    public SimulatorQuerier(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    @Override
+    public Uni<Response> getConfiguration(String key, Object data) {
+        return post("/retrieve", key, data);
+    }
+
+    @Override
+    public Uni<Response> configure(String key, Object data) {
+        return post("/configure", key, data);
+    }
+
+    private Uni<Response> post(String path, String key, Object data) {
+        String form = "key=" + URLEncoder.encode(key, StandardCharsets.UTF_8) + "&data="
+                + URLEncoder.encode(data.toString(), StandardCharsets.UTF_8);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        return Uni.createFrom().completionStage(() -> http.sendAsync(request, HttpResponse.BodyHandlers.ofString()))
+                .map(answer -> {
+                    Response response = Response.status(answer.statusCode()).entity(answer.body()).build();
+                    if (answer.statusCode() >= 400) {
+                        throw new WebApplicationException(response);
+                    }
+                    return response;
+                });
+    }
+}
@@ -0,0 +1,325 @@
+package com.partitio.vyos.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the VyOS HTTP API. /retrieve answers showConfig and
+ * /configure applies set and delete ops to an in-memory configuration tree.
+ * An op array is one commit: it is applied entirely or not at all, and
+ * commits are serialized and take the configured latency, like on a router.
+ *
+ * <p>
+ * The tree has no schema, so the last segment of a set path is the value of
+ * the leaf named by the segment before it. Address and port leaves take
+ * several values, and a few keywords are valueless nodes.
+ *
+ * <p>
+ * Run it on its own with
+ * {@code mvn -Pbenchmark test-compile exec:java@vyos-simulator -Dexec.args="8443 changeme 20"}
+ * and point quarkus.rest-client.vyos.url at http://127.0.0.1:8443.
+ */
+public class VyOSSimulator {
+
+    private static final Set<String> MULTI_VALUED_LEAVES = Set.of("address", "port");
+    private static final Set<String> VALUELESS_NODES = Set.of("disable");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String apiKey;
+    private final long commitLatency;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong retrieves = new AtomicLong();
+    // Replaced on each successful commit, guarded by this
+    private ObjectNode config = mapper.createObjectNode();
+    private HttpServer server;
+
+    /**
+     * @param commitLatency milliseconds each commit takes
+     */
+    public VyOSSimulator(String apiKey, long commitLatency) {
+        this.apiKey = apiKey;
+        this.commitLatency = commitLatency;
+    }
+
+    /**
+     * Starts serving the API on 127.0.0.1, 0 picks a free port.
+     *
+     * @return the base URL of the API
+     */
+    public String start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/retrieve", exchange -> handle(exchange, this::retrieve));
+        server.createContext("/configure", exchange -> handle(exchange, this::configure));
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public long commits() {
+        return commits.get();
+    }
+
+    public long operations() {
+        return operations.get();
+    }
+
+    public long retrieves() {
+        return retrieves.get();
+    }
+
+    /**
+     * Copy of the current configuration.
+     */
+    public synchronized JsonNode config() {
+        return config.deepCopy();
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        JsonNode handle(JsonNode data) throws SimulatorException;
+    }
+
+    private static class SimulatorException extends Exception {
+
+        private final int status;
+
+        SimulatorException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        int status = 200;
+        ObjectNode body = mapper.createObjectNode();
+        try {
+            Map<String, String> form = parseForm(readBody(exchange.getRequestBody()));
+            if (!apiKey.equals(form.get("key"))) {
+                throw new SimulatorException(401, "Valid API key is required");
+            }
+            if (form.get("data") == null) {
+                throw new SimulatorException(400, "Non-empty data field is required");
+            }
+            JsonNode data;
+            try {
+                data = mapper.readTree(form.get("data"));
+            } catch (IOException e) {
+                throw new SimulatorException(400, "Failed to parse JSON");
+            }
+            body.put("success", true);
+            body.set("data", handler.handle(data));
+            body.putNull("error");
+        } catch (SimulatorException e) {
+            status = e.status;
+            body.put("success", false);
+            body.putNull("data");
+            body.put("error", e.getMessage());
+        }
+        byte[] response = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(response);
+        }
+    }
+
+    private static String readBody(InputStream input) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        input.transferTo(buffer);
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseForm(String body) {
+        Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return form;
+    }
+
+    private synchronized JsonNode retrieve(JsonNode data) throws SimulatorException {
+        retrieves.incrementAndGet();
+        if (!"showConfig".equals(data.path("op").asText())) {
+            throw new SimulatorException(400, "\"" + data.path("op").asText() + "\" is not a valid operation");
+        }
+        JsonNode node = config;
+        for (JsonNode segment : data.path("path")) {
+            node = node.path(segment.asText());
+        }
+        if (node.isMissingNode() || (node.isObject() && node.size() == 0)) {
+            throw new SimulatorException(400, "Configuration under specified path is empty");
+        }
+        return node.deepCopy();
+    }
+
+    private synchronized JsonNode configure(JsonNode data) throws SimulatorException {
+        List<JsonNode> batch = new ArrayList<>();
+        if (data.isArray()) {
+            data.forEach(batch::add);
+        } else {
+            batch.add(data);
+        }
+        // Applied to a copy, a failing op leaves the configuration untouched
+        ObjectNode candidate = config.deepCopy();
+        for (JsonNode operation : batch) {
+            List<String> path = new ArrayList<>();
+            operation.path("path").forEach(segment -> path.add(segment.asText()));
+            String op = operation.path("op").asText();
+            if ("set".equals(op)) {
+                set(candidate, path);
+            } else if ("delete".equals(op)) {
+                delete(candidate, path);
+            } else {
+                throw new SimulatorException(400, "\"" + op + "\" is not a valid operation");
+            }
+        }
+        try {
+            Thread.sleep(commitLatency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SimulatorException(503, "Commit interrupted");
+        }
+        config = candidate;
+        commits.incrementAndGet();
+        operations.addAndGet(batch.size());
+        return mapper.nullNode();
+    }
+
+    private void set(ObjectNode root, List<String> path) throws SimulatorException {
+        if (path.isEmpty()) {
+            throw new SimulatorException(400, "Empty path");
+        }
+        String last = path.get(path.size() - 1);
+        if (VALUELESS_NODES.contains(last) || path.size() == 1) {
+            ObjectNode node = root;
+            for (String segment : path) {
+                node = child(node, segment);
+            }
+            return;
+        }
+        ObjectNode node = root;
+        for (String segment : path.subList(0, path.size() - 2)) {
+            node = child(node, segment);
+        }
+        String leaf = path.get(path.size() - 2);
+        JsonNode current = node.get(leaf);
+        if (current == null || current.isObject() || !MULTI_VALUED_LEAVES.contains(leaf)) {
+            node.put(leaf, last);
+        } else if (current.isTextual() && !current.asText().equals(last)) {
+            ArrayNode values = node.putArray(leaf);
+            values.add(current.asText());
+            values.add(last);
+        } else if (current.isArray() && !contains(current, last)) {
+            ((ArrayNode) current).add(last);
+        }
+    }
+
+    private ObjectNode child(ObjectNode node, String segment) throws SimulatorException {
+        JsonNode child = node.get(segment);
+        if (child == null) {
+            return node.putObject(segment);
+        }
+        if (!child.isObject()) {
+            throw new SimulatorException(400, "Cannot set below leaf " + segment);
+        }
+        return (ObjectNode) child;
+    }
+
+    private void delete(ObjectNode root, List<String> path) throws SimulatorException {
+        List<ObjectNode> parents = new ArrayList<>();
+        ObjectNode node = root;
+        for (int i = 0; i < path.size(); i++) {
+            String segment = path.get(i);
+            JsonNode child = node.get(segment);
+            boolean isLast = i == path.size() - 1;
+            if (child != null && isLast) {
+                node.remove(segment);
+                break;
+            }
+            // Deleting one value of a leaf
+            if (child != null && !child.isObject() && i == path.size() - 2) {
+                String value = path.get(i + 1);
+                if (child.isTextual() && child.asText().equals(value)) {
+                    node.remove(segment);
+                } else if (child.isArray() && contains(child, value)) {
+                    ArrayNode remaining = mapper.createArrayNode();
+                    child.forEach(element -> {
+                        if (!element.asText().equals(value)) {
+                            remaining.add(element);
+                        }
+                    });
+                    if (remaining.size() == 1) {
+                        node.put(segment, remaining.get(0).asText());
+                    } else {
+                        node.set(segment, remaining);
+                    }
+                } else {
+                    throw new SimulatorException(400, "Nothing to delete");
+                }
+                break;
+            }
+            if (child == null || !child.isObject()) {
+                throw new SimulatorException(400, "Nothing to delete");
+            }
+            parents.add(node);
+            node = (ObjectNode) child;
+        }
+        // VyOS does not keep empty nodes
+        for (int i = parents.size() - 1; i >= 0; i--) {
+            ObjectNode parent = parents.get(i);
+            JsonNode child = parent.get(path.get(i));
+            if (child != null && child.isObject() && child.size() == 0) {
+                parent.remove(path.get(i));
+            }
+        }
+    }
+
+    private static boolean contains(JsonNode values, String value) {
+        for (JsonNode element : values) {
+            if (element.asText().equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String... args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8443;
+        String apiKey = args.length > 1 ? args[1] : "changeme";
+        long commitLatency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        VyOSSimulator simulator = new VyOSSimulator(apiKey, commitLatency);
+        System.out.println("VyOS simulator listening on " + simulator.start(port) + ", commit latency "
+                + commitLatency + " ms");
+        Thread.currentThread().join();
+    }
+}
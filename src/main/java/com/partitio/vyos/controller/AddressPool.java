@@ -0,0 +1,273 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * In-memory pool of the public IP addresses the controller may put on the WAN
+ * interface. The pool is a set of IPv4 segments, each address being a bit
+ * indexed by its position in the pool, so thousands of addresses cost a few
+ * hundred bytes and no address is ever materialised as a String until it is
+ * handed out.
+ */
+public class AddressPool {
+
+    // First address of each segment, sorted, and pool index of that address
+    private final long[] segmentStarts;
+    private final int[] segmentOffsets;
+    private final int size;
+    private final BitSet used;
+    private final int netmask;
+    private int free;
+    // Next index to look at, avoids rescanning the beginning of the pool
+    private int hint = 0;
+
+    private AddressPool(List<long[]> segments, int netmask) {
+        this.segmentStarts = new long[segments.size()];
+        this.segmentOffsets = new int[segments.size()];
+        long total = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            segmentStarts[i] = segments.get(i)[0];
+            segmentOffsets[i] = (int) total;
+            total += segments.get(i)[1] - segments.get(i)[0] + 1;
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Public IP pool is too large");
+            }
+        }
+        this.size = (int) total;
+        this.free = size;
+        this.used = new BitSet(size);
+        this.netmask = netmask;
+    }
+
+    /**
+     * Builds a pool from a comma separated list of CIDRs (203.0.113.0/26),
+     * ranges (203.0.113.10-203.0.113.20 or 203.0.113.10-20) and single
+     * addresses. Network and broadcast addresses of a CIDR are left out, except
+     * for /31 and /32.
+     *
+     * @param netmask prefix length put on the WAN interface with each address
+     */
+    public static AddressPool parse(String spec, int netmask) {
+        List<long[]> segments = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.contains("/")) {
+                String[] cidr = trimmed.split("/", 2);
+                int prefix = Integer.parseInt(cidr[1].trim());
+                if (prefix < 0 || prefix > 32) {
+                    throw new IllegalArgumentException("Invalid prefix length in " + trimmed);
+                }
+                long count = 1L << (32 - prefix);
+                long network = parseAddress(cidr[0].trim()) & ~(count - 1) & 0xFFFFFFFFL;
+                long first = network;
+                long last = network + count - 1;
+                if (prefix < 31) {
+                    first++;
+                    last--;
+                }
+                segments.add(new long[] { first, last });
+            } else if (trimmed.contains("-")) {
+                String[] range = trimmed.split("-", 2);
+                String from = range[0].trim();
+                String to = range[1].trim();
+                if (!to.contains(".")) {
+                    // Last byte only, same first three bytes
+                    to = from.substring(0, from.lastIndexOf('.') + 1) + to;
+                }
+                long first = parseAddress(from);
+                long last = parseAddress(to);
+                if (last < first) {
+                    throw new IllegalArgumentException("Empty public IP range " + trimmed);
+                }
+                segments.add(new long[] { first, last });
+            } else {
+                long address = parseAddress(trimmed);
+                segments.add(new long[] { address, address });
+            }
+        }
+        segments.sort(Comparator.comparingLong(segment -> segment[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] segment : segments) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && segment[0] <= previous[1]) {
+                throw new IllegalArgumentException("Overlapping public IP ranges in " + spec);
+            }
+            if (previous != null && segment[0] == previous[1] + 1) {
+                previous[1] = segment[1];
+            } else {
+                merged.add(segment);
+            }
+        }
+        return new AddressPool(merged, netmask);
+    }
+
+    /**
+     * Returns the next free address in CIDR notation, using the configured
+     * netmask.
+     */
+    public synchronized String allocate() {
+        int index = used.nextClearBit(hint);
+        if (index >= size) {
+            index = used.nextClearBit(0);
+        }
+        if (index >= size) {
+            throw new NoSuchElementException("No public IP address left in the available range");
+        }
+        used.set(index);
+        free--;
+        hint = index + 1;
+        return toString(address(index)) + "/" + netmask;
+    }
+
+    /**
+     * Takes a given address, e.g. one requested by a Service.
+     */
+    public synchronized String allocate(String address) {
+        int index = index(address);
+        if (index < 0) {
+            throw new IllegalArgumentException("Public IP " + address + " is not in the available range");
+        }
+        if (used.get(index)) {
+            throw new IllegalStateException("Public IP " + address + " is already in use");
+        }
+        used.set(index);
+        free--;
+        return toString(address(index)) + "/" + netmask;
+    }
+
+    /**
+     * Marks an address as used, it may be given with or without its prefix
+     * length.
+     */
+    public synchronized void markUsed(String address) {
+        int index = index(address);
+        if (index >= 0 && !used.get(index)) {
+            used.set(index);
+            free--;
+        }
+    }
+
+    public synchronized void release(String address) {
+        int index = index(address);
+        if (index >= 0 && used.get(index)) {
+            used.clear(index);
+            free++;
+            hint = Math.min(hint, index);
+        }
+    }
+
+    public boolean contains(String address) {
+        return index(address) >= 0;
+    }
+
+    public synchronized void clear() {
+        used.clear();
+        free = size;
+        hint = 0;
+    }
+
+    public synchronized int free() {
+        return free;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Pool index of an address, -1 when it is not part of the pool.
+     */
+    private int index(String address) {
+        long value = parseAddressOrNegative(stripPrefix(address));
+        if (value < 0) {
+            return -1;
+        }
+        int segment = floorSegment(value);
+        if (segment < 0) {
+            return -1;
+        }
+        long offset = value - segmentStarts[segment];
+        int segmentEnd = segment + 1 < segmentOffsets.length ? segmentOffsets[segment + 1] : size;
+        if (offset >= segmentEnd - segmentOffsets[segment]) {
+            return -1;
+        }
+        return segmentOffsets[segment] + (int) offset;
+    }
+
+    private long address(int index) {
+        int low = 0;
+        int high = segmentOffsets.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segmentOffsets[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return segmentStarts[low] + (index - segmentOffsets[low]);
+    }
+
+    // Last segment starting at or before the address
+    private int floorSegment(long value) {
+        int low = 0;
+        int high = segmentStarts.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segmentStarts[middle] <= value) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private static long parseAddress(String address) {
+        long value = parseAddressOrNegative(address);
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid IPv4 address " + address);
+        }
+        return value;
+    }
+
+    private static long parseAddressOrNegative(String address) {
+        String[] bytes = address.split("\\.");
+        if (bytes.length != 4) {
+            return -1;
+        }
+        long value = 0;
+        for (String part : bytes) {
+            int octet;
+            try {
+                octet = Integer.parseInt(part);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            if (octet < 0 || octet > 255) {
+                return -1;
+            }
+            value = (value << 8) | octet;
+        }
+        return value;
+    }
+
+    private static String toString(long address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "."
+                + (address & 0xFF);
+    }
+
+    private static String stripPrefix(String address) {
+        int slash = address.indexOf('/');
+        return slash < 0 ? address : address.substring(0, slash);
+    }
+}
@@ -0,0 +1,97 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rule numbers and addresses taken for one reconcile. They are either kept
+ * with {@link #commit()} once VyOS accepted the configuration, or handed back
+ * with {@link #release()}. What was taken since {@link #mark()} can be handed
+ * back alone with {@link #rollback()}, e.g. for a Service that failed while the
+ * rest of the batch goes on. A reservation is used by a single reconcile
+ * thread.
+ */
+public class AllocationReservation {
+
+    private final VyOSAllocator allocator;
+    private final Map<VyOSRuleTable, List<Integer>> ruleNumbers = new EnumMap<>(VyOSRuleTable.class);
+    private final List<String> addresses = new ArrayList<>();
+    // Sizes of the lists at the mark
+    private final Map<VyOSRuleTable, Integer> ruleNumberMarks = new EnumMap<>(VyOSRuleTable.class);
+    private int addressMark = 0;
+    private boolean done = false;
+
+    AllocationReservation(VyOSAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public int ruleNumber(VyOSRuleTable table) {
+        checkNotDone();
+        return allocator.allocate(this, table);
+    }
+
+    public String address() {
+        checkNotDone();
+        return allocator.allocateAddress(this, null);
+    }
+
+    /**
+     * Takes a given public IP, which must be part of the pool and free.
+     */
+    public String address(String requested) {
+        checkNotDone();
+        return allocator.allocateAddress(this, requested);
+    }
+
+    public void mark() {
+        ruleNumbers.forEach((table, numbers) -> ruleNumberMarks.put(table, numbers.size()));
+        addressMark = addresses.size();
+    }
+
+    public void rollback() {
+        checkNotDone();
+        allocator.rollback(this);
+    }
+
+    public void commit() {
+        if (!done) {
+            done = true;
+            allocator.done(this);
+        }
+    }
+
+    public void release() {
+        if (done) {
+            return;
+        }
+        done = true;
+        allocator.done(this);
+        ruleNumbers.forEach((table, numbers) -> numbers.forEach(number -> allocator.release(table, number)));
+        addresses.forEach(allocator::releaseAddress);
+    }
+
+    // Filled by the allocator while holding its reload lock
+    Map<VyOSRuleTable, List<Integer>> ruleNumbers() {
+        return ruleNumbers;
+    }
+
+    List<String> addresses() {
+        return addresses;
+    }
+
+    int ruleNumberMark(VyOSRuleTable table) {
+        return ruleNumberMarks.getOrDefault(table, 0);
+    }
+
+    int addressMark() {
+        return addressMark;
+    }
+
+    private void checkNotDone() {
+        if (done) {
+            throw new IllegalStateException("Reservation is already committed or released");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Filter;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.jboss.logmanager.ExtLogRecord;
+
+import io.quarkus.logging.LoggingFilter;
+
+/**
+ * Masks the VyOS API keys of every router, and any key form field, in log
+ * messages, e.g. when the REST client logs its requests.
+ */
+@LoggingFilter(name = "redact-api-key")
+public final class ApiKeyRedactionFilter implements Filter {
+
+    private static final String MASK = "****";
+    // A key, api-key or api_key form field, starting the message or right after
+    // a separator, so that e.g. routerKey= or service-key= are left alone
+    private static final Pattern KEY_FIELD = Pattern.compile("(?<![^?&\\s\"])((?:api[-_]?)?key=)[^&\\s\"]+");
+
+    private final List<String> apiKeys = new ArrayList<>();
+
+    public ApiKeyRedactionFilter() {
+        Config config = ConfigProvider.getConfig();
+        for (String name : config.getPropertyNames()) {
+            if (name.startsWith("vyos.") && name.endsWith("api-key")) {
+                config.getOptionalValue(name, String.class)
+                        .filter(key -> !key.isEmpty())
+                        .ifPresent(apiKeys::add);
+            }
+        }
+    }
+
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        String message = record instanceof ExtLogRecord ? ((ExtLogRecord) record).getFormattedMessage()
+                : record.getMessage();
+        if (message == null) {
+            return true;
+        }
+        String redacted = KEY_FIELD.matcher(message).replaceAll("$1" + MASK);
+        for (String apiKey : apiKeys) {
+            redacted = redacted.replace(apiKey, MASK);
+        }
+        if (!redacted.equals(message)) {
+            if (record instanceof ExtLogRecord) {
+                ((ExtLogRecord) record).setMessage(redacted, ExtLogRecord.FormatStyle.NO_FORMAT);
+            } else {
+                record.setMessage(redacted);
+            }
+            record.setParameters(null);
+        }
+        return true;
+    }
+}
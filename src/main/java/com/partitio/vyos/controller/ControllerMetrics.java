@@ -0,0 +1,117 @@
+package com.partitio.vyos.controller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Meters of the controller, served on /q/metrics. They tell apart time spent
+ * waiting on the router, on the reconcile queue and in the controller itself.
+ */
+@ApplicationScoped
+public class ControllerMetrics {
+
+    @Inject
+    private MeterRegistry registry;
+
+    /**
+     * Times one call to the VyOS API.
+     *
+     * @param op      retrieve or configure
+     * @param outcome success or failure
+     */
+    public void vyosRequest(String router, String op, String outcome, long nanos) {
+        Timer.builder("vyos.api.requests")
+                .description("Calls to the VyOS API")
+                .tag("router", router)
+                .tag("op", op)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records how many VyOS commits one reconcile needed, 0 when VyOS already
+     * matched.
+     */
+    public void commits(String router, int commits) {
+        DistributionSummary.builder("vyos.reconcile.commits")
+                .description("VyOS commits per reconcile")
+                .tag("router", router)
+                .register(registry)
+                .record(commits);
+    }
+
+    /**
+     * Times the reconcile of one Service event, tagged by event type rather
+     * than by Service to keep the series count bounded.
+     */
+    public void reconcile(ServiceEvent.Type type, String outcome, long nanos) {
+        Timer.builder("controller.reconcile")
+                .description("Reconcile of a Service event")
+                .tag("event", type.name().toLowerCase())
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Times how long a Service waited in the reconcile queue.
+     */
+    public void queueWait(long nanos) {
+        Timer.builder("controller.queue.wait")
+                .description("Time a Service waited for a reconcile worker")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts one informer event.
+     *
+     * @param event add, update, resync or delete
+     */
+    public void informerEvent(String event) {
+        Counter.builder("controller.informer.events")
+                .description("Service events received from the informer")
+                .tag("event", event)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Registers the gauges of what the last orphan sweep removed.
+     */
+    public void sweep(Supplier<SweepResult> lastResult) {
+        for (VyOSRuleTable table : VyOSRuleTable.values()) {
+            gauge("controller.sweep.orphaned.rules", "Orphaned rules removed by the last sweep",
+                    () -> lastResult.get().orphanedRules.getOrDefault(table, 0), "table",
+                    table.name().toLowerCase());
+        }
+        gauge("controller.sweep.leaked.addresses", "Leaked addresses removed by the last sweep",
+                () -> lastResult.get().leakedAddresses);
+        gauge("controller.sweep.last", "End of the last sweep, in seconds since the epoch",
+                () -> lastResult.get().timestamp / 1000.0);
+    }
+
+    /**
+     * Registers a gauge, the supplier is read on each scrape.
+     *
+     * @param tags tag keys and values, alternated
+     */
+    public void gauge(String name, String description, Supplier<Number> value, String... tags) {
+        Gauge.builder(name, value)
+                .description(description)
+                .tags(tags)
+                .register(registry);
+    }
+}
@@ -0,0 +1,84 @@
+package com.partitio.vyos.controller;
+
+import java.util.List;
+
+import io.fabric8.kubernetes.api.model.ServicePort;
+
+/**
+ * What VyOS should expose for one Service: its ports, redirected to its IPv4
+ * load balancer IP, and accepted on its IPv6 load balancer IP which is routed
+ * without NAT. A dual-stack Service has both. A Service without ready backends
+ * keeps its rules, but its firewall rules reject the traffic.
+ */
+public class DesiredService {
+
+    private final String name;
+    // Router named by the Service annotation, null to let the controller pick one
+    private final String router;
+    // IPv4 load balancer IP, null for an IPv6 only Service
+    private final String ip;
+    // IPv6 load balancer IP, null for an IPv4 only Service
+    private final String ipv6;
+    // Public IP asked for by the Service annotation, null for any free one
+    private final String requestedPublicIP;
+    private final List<ServicePort> ports;
+    private final boolean ready;
+
+    public DesiredService(String name, String router, String ip, String requestedPublicIP,
+            List<ServicePort> ports) {
+        this(name, router, ip, null, requestedPublicIP, ports, true);
+    }
+
+    public DesiredService(String name, String router, String ip, String ipv6, String requestedPublicIP,
+            List<ServicePort> ports, boolean ready) {
+        this.name = name;
+        this.router = router;
+        this.ipv6 = ipv6;
+        this.requestedPublicIP = requestedPublicIP;
+        this.ip = ip;
+        this.ports = ports;
+        this.ready = ready;
+    }
+
+    /**
+     * A Service whose rules must all be removed.
+     */
+    public static DesiredService absent(String name, String router) {
+        return new DesiredService(name, router, null, null, List.of());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getRouter() {
+        return router;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public String getIpv6() {
+        return ipv6;
+    }
+
+    public String getRequestedPublicIP() {
+        return requestedPublicIP;
+    }
+
+    public List<ServicePort> getPorts() {
+        return ports;
+    }
+
+    /**
+     * Whether the Service has ready backends to forward its traffic to.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public boolean isAbsent() {
+        return (ip == null && ipv6 == null) || ports.isEmpty();
+    }
+}
@@ -0,0 +1,215 @@
+package com.partitio.vyos.controller;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.api.model.discovery.v1.Endpoint;
+import io.fabric8.kubernetes.api.model.discovery.v1.EndpointSlice;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Tells whether a Service has ready backends, from an EndpointSlice informer
+ * indexed by Service. The rules of a Service without any reject its traffic,
+ * so that the router stops forwarding to a dead Service.
+ *
+ * <p>
+ * Slice changes are debounced per Service: the first change starts a delay
+ * after which the readiness is looked at once, and the Service is only queued
+ * when it differs from what its rules were last built with. Pods rolling over
+ * therefore cost no commit unless the last ready backend goes away.
+ *
+ * <p>
+ * Needs list and watch on discovery.k8s.io endpointslices, disabled by default.
+ */
+@ApplicationScoped
+public class EndpointSliceWatcher implements ResourceEventHandler<EndpointSlice> {
+
+    private static final Logger LOG = Logger.getLogger(EndpointSliceWatcher.class);
+
+    private static final String SERVICE_INDEX = "service";
+    private static final String SERVICE_NAME_LABEL = "kubernetes.io/service-name";
+
+    @ConfigProperty(name = "controller.endpoints.enabled", defaultValue = "false")
+    private Boolean enabled;
+
+    // Milliseconds between the first slice change of a Service and the check
+    // of its readiness
+    @ConfigProperty(name = "controller.endpoints.debounce", defaultValue = "2000")
+    private Long debounce;
+
+    @Inject
+    private KubernetesClient client;
+
+    @Inject
+    private ReconcileQueue reconcileQueue;
+
+    @Inject
+    private ControllerMetrics metrics;
+
+    private SharedIndexInformer<EndpointSlice> informer = null;
+    private ScheduledExecutorService scheduler = null;
+    private Function<String, Service> services = null;
+
+    // Readiness the rules of each Service were last built with
+    private final Map<String, Boolean> reconciledReadiness = new ConcurrentHashMap<>();
+    // Services with a readiness check scheduled
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts the informer, the returned future completes once its cache is
+     * synced. Nothing is watched when disabled.
+     *
+     * @param services Service of a namespace/name key, from the Service
+     *                 informer cache
+     */
+    public synchronized CompletableFuture<Void> start(Optional<String> namespace,
+            Function<String, Service> services) {
+        if (!enabled || informer != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        this.services = services;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "endpoints-debounce");
+            thread.setDaemon(true);
+            return thread;
+        });
+        informer = namespace
+                .map(watched -> client.discovery().v1().endpointSlices().inNamespace(watched)
+                        .withLabel(SERVICE_NAME_LABEL).runnableInformer(0))
+                .orElseGet(() -> client.discovery().v1().endpointSlices().inAnyNamespace()
+                        .withLabel(SERVICE_NAME_LABEL).runnableInformer(0));
+        informer.addIndexers(Map.of(SERVICE_INDEX, slice -> List.of(serviceKey(slice))));
+        informer.addEventHandler(this);
+        SharedIndexInformer<EndpointSlice> started = informer;
+        return started.start().toCompletableFuture().thenRun(
+                () -> LOG.infof("EndpointSlice informer synced, watching=%s", started.isWatching()));
+    }
+
+    @PreDestroy
+    synchronized void stop() {
+        if (informer != null) {
+            informer.stop();
+            informer = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private static String serviceKey(EndpointSlice slice) {
+        return slice.getMetadata().getNamespace() + "/" + slice.getMetadata().getLabels().get(SERVICE_NAME_LABEL);
+    }
+
+    /**
+     * Whether the Service has at least one ready endpoint. Always true when
+     * disabled, and for Services without selector whose endpoints are not
+     * managed by Kubernetes.
+     */
+    public boolean isReady(Service service) {
+        SharedIndexInformer<EndpointSlice> started = informer;
+        if (started == null) {
+            return true;
+        }
+        Map<String, String> selector = service.getSpec().getSelector();
+        if (selector == null || selector.isEmpty()) {
+            return true;
+        }
+        for (EndpointSlice slice : started.getIndexer().byIndex(SERVICE_INDEX, ServiceWatcher.key(service))) {
+            if (slice.getEndpoints() == null) {
+                continue;
+            }
+            for (Endpoint endpoint : slice.getEndpoints()) {
+                // An unknown condition is to be taken as ready
+                if (endpoint.getConditions() == null
+                        || !Boolean.FALSE.equals(endpoint.getConditions().getReady())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the readiness the rules of a Service are built with.
+     */
+    public void reconciled(String serviceKey, boolean ready) {
+        if (informer != null) {
+            reconciledReadiness.put(serviceKey, ready);
+        }
+    }
+
+    /**
+     * Forgets a Service whose rules were removed.
+     */
+    public void forget(String serviceKey) {
+        reconciledReadiness.remove(serviceKey);
+    }
+
+    private void changed(EndpointSlice slice) {
+        metrics.informerEvent("endpoints");
+        String key = serviceKey(slice);
+        // Later changes within the delay are covered by the scheduled check
+        if (!pending.add(key)) {
+            return;
+        }
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            pending.remove(key);
+            return;
+        }
+        current.schedule(() -> {
+            pending.remove(key);
+            check(key);
+        }, debounce, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(String key) {
+        Boolean reconciled = reconciledReadiness.get(key);
+        // Services without rules read their endpoints when they get some
+        if (reconciled == null) {
+            return;
+        }
+        Service service = services.apply(key);
+        if (service == null) {
+            return;
+        }
+        boolean ready = isReady(service);
+        if (ready != reconciled) {
+            LOG.infof("Service readiness changed, service=%s ready=%s", key, ready);
+            reconcileQueue.submit(key, ServiceEvent.endpoints(service));
+        }
+    }
+
+    @Override
+    public void onAdd(EndpointSlice slice) {
+        changed(slice);
+    }
+
+    @Override
+    public void onUpdate(EndpointSlice oldSlice, EndpointSlice newSlice) {
+        changed(newSlice);
+    }
+
+    @Override
+    public void onDelete(EndpointSlice slice, boolean deletedFinalStateUnknown) {
+        changed(slice);
+    }
+}
@@ -0,0 +1,154 @@
+package com.partitio.vyos.controller;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Firewall state of the rule group mode. Services exposing the same ports of
+ * a protocol share one firewall rule, matching an address group of their IPs
+ * and a port group of their ports, so adding such a Service only changes the
+ * address group.
+ *
+ * <p>
+ * What each Service exposes is read from its destination NAT rules, which
+ * stay per Service, and updated while a batch is built. A Service without
+ * ready backends is left out of the groups, its own firewall rule rejects its
+ * traffic.
+ *
+ * <p>
+ * A group is named after a hash of its port list. A port list whose name is
+ * already taken by other ports gets the first free numbered suffix, and keeps
+ * whichever name holds its ports on the router.
+ */
+public class FirewallGroups {
+
+    public static final String GROUP_PREFIX = "KUBE-";
+    public static final String RULE_PREFIX = "Auto Kube Firewall group rule for";
+
+    // IP and port list by protocol of each Service
+    private final Map<String, String> serviceIPs = new HashMap<>();
+    private final Map<String, Map<String, String>> servicePorts = new HashMap<>();
+    // Ports of the port groups on the router, by name
+    private final Map<String, Set<String>> currentPorts = new TreeMap<>();
+    // IP and port lists the Services changed since the mark had before
+    private final Map<String, String> savedIPs = new HashMap<>();
+    private final Map<String, Map<String, String>> savedPorts = new HashMap<>();
+
+    public static class Group {
+
+        public final String protocol;
+        public final String ports;
+        public final Set<String> addresses = new TreeSet<>();
+
+        Group(String protocol, String ports) {
+            this.protocol = protocol;
+            this.ports = ports;
+        }
+    }
+
+    public FirewallGroups(VyOSConfigSnapshot snapshot) {
+        currentPorts.putAll(snapshot.portGroups());
+        snapshot.serviceRules().forEach((name, rules) -> {
+            if (rules.stream().anyMatch(rule -> snapshot.tag(rule).getKind() == RuleTag.Kind.FIREWALL
+                    && "reject".equals(rule.getSetting("action")))) {
+                return;
+            }
+            for (VyOSRule rule : rules) {
+                RuleTag tag = snapshot.tag(rule);
+                String ip = rule.getSetting("translation address");
+                String ports = rule.getSetting("destination port");
+                if (tag.getKind() == RuleTag.Kind.NAT && ip != null && ports != null) {
+                    serviceIPs.put(name, ip);
+                    servicePorts.computeIfAbsent(name, key -> new HashMap<>()).put(tag.getProtocol(), ports);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param portLists VyOS port list by protocol
+     */
+    public void expose(String serviceName, String ip, Map<String, String> portLists) {
+        save(serviceName);
+        serviceIPs.put(serviceName, ip);
+        servicePorts.put(serviceName, new HashMap<>(portLists));
+    }
+
+    public void remove(String serviceName) {
+        save(serviceName);
+        serviceIPs.remove(serviceName);
+        servicePorts.remove(serviceName);
+    }
+
+    public void mark() {
+        savedIPs.clear();
+        savedPorts.clear();
+    }
+
+    /**
+     * Puts back the Services changed since {@link #mark()} as they were.
+     */
+    public void rollback() {
+        savedPorts.forEach((name, portLists) -> {
+            if (portLists == null) {
+                serviceIPs.remove(name);
+                servicePorts.remove(name);
+            } else {
+                serviceIPs.put(name, savedIPs.get(name));
+                servicePorts.put(name, portLists);
+            }
+        });
+        mark();
+    }
+
+    private void save(String serviceName) {
+        if (!savedPorts.containsKey(serviceName)) {
+            savedIPs.put(serviceName, serviceIPs.get(serviceName));
+            savedPorts.put(serviceName, servicePorts.get(serviceName));
+        }
+    }
+
+    /**
+     * Groups needed by the exposed Services, by name.
+     */
+    public Map<String, Group> groups() {
+        Map<String, Group> groups = new TreeMap<>();
+        Map<String, String> names = new HashMap<>();
+        // Sorted so that colliding port lists get the same suffixes every time
+        new TreeMap<>(servicePorts).forEach((name, portLists) -> new TreeMap<>(portLists).forEach((protocol, ports) -> {
+            String groupName = names.computeIfAbsent(protocol + " " + ports,
+                    key -> groupName(protocol, ports, groups));
+            groups.computeIfAbsent(groupName, key -> new Group(protocol, ports)).addresses
+                    .add(serviceIPs.get(name));
+        }));
+        return groups;
+    }
+
+    private String groupName(String protocol, String ports, Map<String, Group> groups) {
+        String prefix = GROUP_PREFIX + protocol.toUpperCase() + "-";
+        Set<String> portSet = ports(ports);
+        for (Map.Entry<String, Set<String>> current : currentPorts.entrySet()) {
+            if (current.getKey().startsWith(prefix) && current.getValue().equals(portSet)
+                    && !groups.containsKey(current.getKey())) {
+                return current.getKey();
+            }
+        }
+        String hashed = prefix + String.format("%08X", ports.hashCode());
+        String groupName = hashed;
+        for (int suffix = 2; currentPorts.containsKey(groupName) || groups.containsKey(groupName); suffix++) {
+            groupName = hashed + "-" + suffix;
+        }
+        return groupName;
+    }
+
+    /**
+     * Members of the port group of a VyOS port list.
+     */
+    public static Set<String> ports(String ports) {
+        return new TreeSet<>(Arrays.asList(ports.split(",")));
+    }
+}
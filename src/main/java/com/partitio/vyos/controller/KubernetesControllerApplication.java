@@ -1,8 +1,28 @@
 package com.partitio.vyos.controller;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
 import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.api.model.ServiceList;
 import io.fabric8.kubernetes.client.KubernetesClient;
-import io.fabric8.kubernetes.client.informers.SharedInformerFactory;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
+import io.fabric8.kubernetes.client.dsl.ServiceResource;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
 import io.quarkus.runtime.Quarkus;
 import io.quarkus.runtime.QuarkusApplication;
 import io.quarkus.runtime.ShutdownEvent;
@@ -14,28 +34,265 @@ import jakarta.inject.Inject;
 
 public class KubernetesControllerApplication implements QuarkusApplication {
 
+    private static final Logger LOG = Logger.getLogger(KubernetesControllerApplication.class);
+
     @Inject
     private KubernetesClient client;
 
     @Inject
     private ServiceWatcher serviceWatcher;
 
-    private SharedInformerFactory informerFactory = null;
+    @Inject
+    private VyOSController vyosController;
+
+    @Inject
+    private ReconcileQueue reconcileQueue;
+
+    @Inject
+    private OrphanSweeper orphanSweeper;
+
+    @Inject
+    private VyOSBindings bindings;
+
+    @Inject
+    private EndpointSliceWatcher endpointSliceWatcher;
+
+    @Inject
+    private LeaderElection leaderElection;
+
+    @Inject
+    private StartupReadinessCheck readiness;
+
+    @ConfigProperty(name = "controller.resync-period", defaultValue = "30000")
+    private Long resyncPeriod;
+
+    @ConfigProperty(name = "controller.watch.namespace")
+    private Optional<String> watchedNamespace;
+
+    // Comma separated, key=value, key!=value, key or !key
+    @ConfigProperty(name = "controller.watch.label-selector")
+    private Optional<String> labelSelector;
+
+    // Comma separated, key=value or key!=value. The API server only supports
+    // metadata.name and metadata.namespace as field selectors on Services
+    @ConfigProperty(name = "controller.watch.field-selector")
+    private Optional<String> fieldSelector;
+
+    // When set, only Services carrying this label (key or key=value) are watched
+    @ConfigProperty(name = "controller.watch.opt-in-label")
+    private Optional<String> optInLabel;
+
+    // Milliseconds between two allocation refreshes of a standby replica
+    @ConfigProperty(name = "controller.leader-election.standby-refresh-interval", defaultValue = "60000")
+    private Long standbyRefreshInterval;
+
+    // Milliseconds between two attempts of a failed full reconcile
+    @ConfigProperty(name = "controller.full-reconcile.retry-interval", defaultValue = "30000")
+    private Long fullReconcileRetryInterval;
+
+    private SharedIndexInformer<Service> serviceInformer = null;
+    private ScheduledExecutorService standbyRefresher = null;
+    private ScheduledExecutorService fullReconcileRetrier = null;
 
     @Override
     public int run(String... args) throws Exception {
-        informerFactory = client.informers();
-        final var serviceHandler = informerFactory.sharedIndexInformerFor(Service.class, 30000);
-        System.out.println("Connected to : " + client.getMasterUrl());
-        serviceHandler.addEventHandler(serviceWatcher);
-        informerFactory.startAllRegisteredInformers().get();
-        System.out.println("Informer factory is watching : " + serviceHandler.isWatching());
+        // Allocations and bindings must be known before the first event is
+        // handled. Standby replicas load them too, so that taking over does not
+        // start cold. Both lists and the VyOS reads run in parallel
+        CompletableFuture<Void> bindingsSynced = bindings.start(watchedNamespace);
+        CompletableFuture<Void> allocationsLoaded = CompletableFuture.runAsync(() -> {
+            try {
+                vyosController.refreshAllocations();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        // Filtering is done by the API server, Services not matching are never
+        // received nor cached
+        serviceInformer = watchedServices().runnableInformer(resyncPeriod);
+        LOG.infof("Connected, apiServer=%s", client.getMasterUrl());
+        // Events wait in the queue until this replica leads
+        serviceInformer.addEventHandler(serviceWatcher);
+        CompletableFuture<Void> servicesSynced = serviceInformer.start().toCompletableFuture();
+        // Readiness has to be known before the first reconcile, or every Service
+        // would be rejected until its slices arrive
+        CompletableFuture<Void> endpointsSynced = endpointSliceWatcher.start(watchedNamespace,
+                key -> serviceInformer.getStore().getByKey(key));
+        CompletableFuture.allOf(bindingsSynced, allocationsLoaded, servicesSynced, endpointsSynced).get();
+        LOG.infof("Service informer synced, watching=%s", serviceInformer.isWatching());
+        checkAllocations(serviceInformer.getStore().list());
+        readiness.synced();
+        startStandbyRefresher();
+        leaderElection.start(this::startLeading, this::stopLeading);
         Quarkus.waitForExit();
         return 0;
     }
 
+    private void startLeading() {
+        readiness.leading();
+        // The full reconcile below covers whatever was queued while standby,
+        // including the adds replayed by the initial list
+        int dropped = reconcileQueue.clear();
+        LOG.infof("Taking over, dropped=%d queued Services are covered by the full reconcile", dropped);
+        boolean reconciled = reconcileAll();
+        // Events received meanwhile waited in the queue, they are handled with
+        // the allocations the full reconcile loaded
+        reconcileQueue.start(serviceWatcher::reconcile);
+        if (!reconciled) {
+            // Resyncs skip the Services reconciled before, only another full
+            // reconcile catches up on the drift
+            fullReconcileRetrier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "full-reconcile-retrier");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fullReconcileRetrier.schedule(this::retryReconcileAll, fullReconcileRetryInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * One full reconcile from the informer cache fixes drift left by events
+     * missed while the controller was not running or not leading. It reads each
+     * router once, reloads its allocations from that read and pushes every
+     * missing rule in batched commits. The replica is only reported reconciled,
+     * and orphans only swept, once it went through.
+     *
+     * @return whether the full reconcile went through
+     */
+    private boolean reconcileAll() {
+        List<Service> services = serviceInformer.getStore().list();
+        long start = System.nanoTime();
+        try {
+            serviceWatcher.reconcileAll(services);
+        } catch (Exception e) {
+            LOG.errorf(e, "Full reconcile failed, retryInMs=%d", fullReconcileRetryInterval);
+            return false;
+        }
+        readiness.reconciled(services.size(), System.nanoTime() - start);
+        LOG.infof("Full reconcile done, services=%d durationMs=%d", services.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        orphanSweeper.start(() -> serviceInformer.getStore().list());
+        return true;
+    }
+
+    private void retryReconcileAll() {
+        if (!reconcileAll()) {
+            fullReconcileRetrier.schedule(this::retryReconcileAll, fullReconcileRetryInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopLeading() {
+        // A reconcile in flight cannot be recalled, restarting makes sure this
+        // replica never commits next to the new leader
+        reconcileQueue.stop();
+        orphanSweeper.stop();
+        if (fullReconcileRetrier != null) {
+            fullReconcileRetrier.shutdownNow();
+        }
+        LOG.warn("Leadership lost, exiting");
+        Quarkus.asyncExit(1);
+    }
+
+    /**
+     * Keeps the allocation pools of a standby replica close to VyOS.
+     */
+    private void startStandbyRefresher() {
+        if (standbyRefreshInterval <= 0) {
+            return;
+        }
+        standbyRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "standby-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        standbyRefresher.scheduleWithFixedDelay(() -> {
+            if (leaderElection.isLeader()) {
+                return;
+            }
+            try {
+                vyosController.refreshAllocations();
+            } catch (Exception e) {
+                LOG.error("Standby allocation refresh failed", e);
+            }
+        }, standbyRefreshInterval, standbyRefreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkAllocations(Collection<Service> services) throws Exception {
+        // Claims are checked against the router holding the rules of each Service
+        Map<String, Map<String, Map<VyOSRuleTable, Set<Integer>>>> claims = new HashMap<>();
+        for (Service service : services) {
+            String key = ServiceWatcher.key(service);
+            String router = serviceWatcher.assignedRouter(service);
+            if (router == null || !vyosController.routerNames().contains(router)) {
+                try {
+                    router = vyosController.routerFor(key, serviceWatcher.pinnedRouter(service));
+                } catch (IllegalArgumentException e) {
+                    LOG.warnf("%s, not checking it", e.getMessage());
+                    continue;
+                }
+            }
+            claims.computeIfAbsent(router, name -> new HashMap<>()).put(key,
+                    serviceWatcher.claimedRuleNumbers(service));
+        }
+        vyosController.checkAllocations(claims);
+    }
+
+    private FilterWatchListDeletable<Service, ServiceList, ServiceResource<Service>> watchedServices() {
+        FilterWatchListDeletable<Service, ServiceList, ServiceResource<Service>> services = watchedNamespace
+                .<FilterWatchListDeletable<Service, ServiceList, ServiceResource<Service>>>map(
+                        namespace -> client.services().inNamespace(namespace))
+                .orElseGet(() -> client.services().inAnyNamespace());
+        List<String> labels = new ArrayList<>();
+        labelSelector.ifPresent(selector -> labels.addAll(Arrays.asList(selector.split(","))));
+        optInLabel.ifPresent(labels::add);
+        for (String label : labels) {
+            String requirement = label.trim();
+            if (requirement.isEmpty()) {
+                continue;
+            }
+            if (requirement.contains("!=")) {
+                String[] keyValue = requirement.split("!=", 2);
+                services = services.withoutLabel(keyValue[0].trim(), keyValue[1].trim());
+            } else if (requirement.contains("=")) {
+                String[] keyValue = requirement.split("=", 2);
+                services = services.withLabel(keyValue[0].trim(), keyValue[1].trim());
+            } else if (requirement.startsWith("!")) {
+                services = services.withoutLabel(requirement.substring(1).trim());
+            } else {
+                services = services.withLabel(requirement);
+            }
+        }
+        if (fieldSelector.isPresent()) {
+            for (String field : fieldSelector.get().split(",")) {
+                String requirement = field.trim();
+                if (requirement.contains("!=")) {
+                    String[] keyValue = requirement.split("!=", 2);
+                    services = services.withoutField(keyValue[0].trim(), keyValue[1].trim());
+                } else if (requirement.contains("=")) {
+                    String[] keyValue = requirement.split("=", 2);
+                    services = services.withField(keyValue[0].trim(), keyValue[1].trim());
+                }
+            }
+        }
+        return services;
+    }
+
     void onShutDown(@Observes ShutdownEvent event) {
-        informerFactory.stopAllRegisteredInformers();
+        leaderElection.stop();
+        if (standbyRefresher != null) {
+            standbyRefresher.shutdownNow();
+        }
+        if (fullReconcileRetrier != null) {
+            fullReconcileRetrier.shutdownNow();
+        }
+        if (serviceInformer != null) {
+            serviceInformer.stop();
+        }
+        reconcileQueue.stop();
+        orphanSweeper.stop();
+        bindings.stop();
     }
 
     public static void main(String... args) {
@@ -0,0 +1,143 @@
+package com.partitio.vyos.controller;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.extended.leaderelection.LeaderCallbacks;
+import io.fabric8.kubernetes.client.extended.leaderelection.LeaderElectionConfigBuilder;
+import io.fabric8.kubernetes.client.extended.leaderelection.resourcelock.LeaseLock;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Lease based leader election between controller replicas. Only the leader
+ * reconciles, the others stay standby with warm caches. When disabled, the
+ * single replica leads right away.
+ */
+@ApplicationScoped
+public class LeaderElection {
+
+    private static final Logger LOG = Logger.getLogger(LeaderElection.class);
+
+    // Longest wait on shutdown for a callback in flight, in milliseconds
+    private static final long STOP_TIMEOUT = 5000;
+
+    @ConfigProperty(name = "controller.leader-election.enabled", defaultValue = "false")
+    private Boolean enabled;
+
+    @ConfigProperty(name = "controller.leader-election.lease-name", defaultValue = "vyos-k8s-controller")
+    private String leaseName;
+
+    // Defaults to the namespace of the pod
+    @ConfigProperty(name = "controller.leader-election.lease-namespace")
+    private Optional<String> leaseNamespace;
+
+    // Milliseconds
+    @ConfigProperty(name = "controller.leader-election.lease-duration", defaultValue = "15000")
+    private Long leaseDuration;
+
+    @ConfigProperty(name = "controller.leader-election.renew-deadline", defaultValue = "10000")
+    private Long renewDeadline;
+
+    @ConfigProperty(name = "controller.leader-election.retry-period", defaultValue = "2000")
+    private Long retryPeriod;
+
+    @Inject
+    private KubernetesClient client;
+
+    private volatile boolean leader = false;
+    // Set once the application shuts down, the lease is then given back on
+    // purpose and losing it must not exit with an error
+    private volatile boolean stopping = false;
+    private CompletableFuture<?> election = null;
+    // Taking over runs a full reconcile, which must not hold up lease renewals
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "leader-election");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Joins the election. onStartLeading runs once this replica holds the
+     * lease, onStopLeading once it lost it.
+     */
+    public synchronized void start(Runnable onStartLeading, Runnable onStopLeading) {
+        if (!enabled) {
+            leader = true;
+            onStartLeading.run();
+            return;
+        }
+        // The pod name, unique among replicas
+        String identity = Optional.ofNullable(System.getenv("HOSTNAME")).orElse(UUID.randomUUID().toString());
+        String namespace = leaseNamespace.orElseGet(() -> Optional.ofNullable(client.getNamespace()).orElse("default"));
+        LOG.infof("Joining leader election, lease=%s/%s identity=%s", namespace, leaseName, identity);
+        election = client.leaderElector()
+                .withConfig(new LeaderElectionConfigBuilder()
+                        .withName(leaseName)
+                        .withLock(new LeaseLock(namespace, leaseName, identity))
+                        .withLeaseDuration(Duration.ofMillis(leaseDuration))
+                        .withRenewDeadline(Duration.ofMillis(renewDeadline))
+                        .withRetryPeriod(Duration.ofMillis(retryPeriod))
+                        .withReleaseOnCancel(true)
+                        .withLeaderCallbacks(new LeaderCallbacks(
+                                () -> callbacks.execute(() -> {
+                                    if (stopping) {
+                                        return;
+                                    }
+                                    leader = true;
+                                    LOG.infof("Leading, identity=%s", identity);
+                                    onStartLeading.run();
+                                }),
+                                () -> {
+                                    leader = false;
+                                    if (stopping) {
+                                        LOG.infof("Lease released, identity=%s", identity);
+                                        return;
+                                    }
+                                    callbacks.execute(() -> {
+                                        if (stopping) {
+                                            return;
+                                        }
+                                        LOG.warnf("Stopped leading, identity=%s", identity);
+                                        onStopLeading.run();
+                                    });
+                                },
+                                newLeader -> LOG.infof("New leader, leader=%s", newLeader)))
+                        .build())
+                .build()
+                .start();
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * Gives the lease back, so that a standby takes over without waiting for
+     * it to expire.
+     */
+    public synchronized void stop() {
+        stopping = true;
+        if (election != null) {
+            election.cancel(true);
+            election = null;
+        }
+        callbacks.shutdown();
+        try {
+            if (!callbacks.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warnf("Leader election callback still running, timeoutMs=%d", STOP_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
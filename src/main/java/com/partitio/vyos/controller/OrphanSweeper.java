@@ -0,0 +1,86 @@
+package com.partitio.vyos.controller;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.fabric8.kubernetes.api.model.Service;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Periodically looks for "Auto Kube" rules whose Service is not in the informer
+ * cache anymore, e.g. after a missed delete or a crash in the middle of a
+ * reconcile, and removes them with the public addresses they leaked. Rules of
+ * Services that still exist but are filtered out of the watch are left alone.
+ */
+@ApplicationScoped
+public class OrphanSweeper {
+
+    private static final Logger LOG = Logger.getLogger(OrphanSweeper.class);
+
+    // Milliseconds between two sweeps, 0 disables the sweeper
+    @ConfigProperty(name = "controller.sweep-interval", defaultValue = "300000")
+    private Long sweepInterval;
+
+    @Inject
+    private VyOSController vyosController;
+
+    @Inject
+    private ServiceWatcher serviceWatcher;
+
+    @Inject
+    private ControllerMetrics metrics;
+
+    private ScheduledExecutorService executor;
+
+    private volatile SweepResult lastResult = new SweepResult();
+
+    @PostConstruct
+    void registerMetrics() {
+        metrics.sweep(this::getLastResult);
+    }
+
+    public synchronized void start(Supplier<Collection<Service>> cachedServices) {
+        if (executor != null || sweepInterval <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "orphan-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> sweep(cachedServices), sweepInterval, sweepInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public SweepResult getLastResult() {
+        return lastResult;
+    }
+
+    private void sweep(Supplier<Collection<Service>> cachedServices) {
+        try {
+            Collection<Service> services = cachedServices.get();
+            SweepResult result = vyosController.sweepOrphans(serviceWatcher.manageableServices(services),
+                    serviceWatcher.removableRules(services));
+            lastResult = result;
+            LOG.infof("Orphan sweep done, removedRules=%d removedAddresses=%d", result.orphanedRules(),
+                    result.leakedAddresses);
+        } catch (Exception e) {
+            LOG.error("Orphan sweep failed", e);
+        }
+    }
+}
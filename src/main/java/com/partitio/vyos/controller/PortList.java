@@ -0,0 +1,80 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+
+/**
+ * VyOS port lists, e.g. "53,80,8000-8010".
+ */
+public final class PortList {
+
+    private PortList() {
+    }
+
+    /**
+     * Joins the ports, contiguous ports being collapsed into a range.
+     */
+    public static String format(SortedSet<Integer> ports) {
+        StringBuilder list = new StringBuilder();
+        Iterator<Integer> iterator = ports.iterator();
+        if (!iterator.hasNext()) {
+            return "";
+        }
+        int rangeStart = iterator.next();
+        int rangeEnd = rangeStart;
+        while (iterator.hasNext()) {
+            int port = iterator.next();
+            if (port == rangeEnd + 1) {
+                rangeEnd = port;
+                continue;
+            }
+            append(list, rangeStart, rangeEnd);
+            rangeStart = port;
+            rangeEnd = port;
+        }
+        append(list, rangeStart, rangeEnd);
+        return list.toString();
+    }
+
+    private static void append(StringBuilder list, int rangeStart, int rangeEnd) {
+        if (list.length() > 0) {
+            list.append(',');
+        }
+        list.append(rangeStart);
+        if (rangeEnd > rangeStart) {
+            list.append('-').append(rangeEnd);
+        }
+    }
+
+    /**
+     * Expands a port list, entries that are not ports are skipped.
+     */
+    public static List<Integer> parse(String list) {
+        List<Integer> ports = new ArrayList<>();
+        if (list == null) {
+            return ports;
+        }
+        for (String entry : list.split(",")) {
+            String[] range = entry.trim().split("-", 2);
+            try {
+                int rangeStart = Integer.parseInt(range[0].trim());
+                int rangeEnd = range.length > 1 ? Integer.parseInt(range[1].trim()) : rangeStart;
+                for (int port = rangeStart; port <= rangeEnd; port++) {
+                    ports.add(port);
+                }
+            } catch (NumberFormatException e) {
+                // Named ports are not used by the controller
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * Identifies a port of a protocol, e.g. "53/udp".
+     */
+    public static String key(int port, String protocol) {
+        return port + "/" + protocol;
+    }
+}
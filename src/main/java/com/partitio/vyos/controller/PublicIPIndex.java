@@ -0,0 +1,152 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Which Service uses which port, e.g. "53/udp", of each public IP, and which addresses are on
+ * the WAN interface. Built from the NAT rules of a snapshot, then kept up to
+ * date while a batch is built so that Services of the same batch see each
+ * other. The changes made since {@link #mark()} can be undone with
+ * {@link #rollback()}, e.g. when a Service of the batch fails.
+ */
+public class PublicIPIndex {
+
+    // Sorted so that Services are packed on the lowest shared IPs first
+    private final Map<String, Map<String, String>> portOwners = new TreeMap<>();
+    // WAN interface addresses in CIDR notation, by IP
+    private final Map<String, String> addresses = new HashMap<>();
+    // Undoes the changes made since the mark, latest first
+    private final Deque<Runnable> undo = new ArrayDeque<>();
+
+    public PublicIPIndex(VyOSConfigSnapshot snapshot) {
+        for (String address : snapshot.addresses()) {
+            addAddress(address);
+        }
+        snapshot.serviceRules().forEach((name, rules) -> {
+            for (VyOSRule rule : rules) {
+                RuleTag tag = snapshot.tag(rule);
+                String ip = rule.getSetting("destination address");
+                if (tag.getKind() == RuleTag.Kind.NAT && ip != null) {
+                    Map<String, String> owners = portOwners.computeIfAbsent(ip, key -> new HashMap<>());
+                    for (Integer port : PortList.parse(rule.getSetting("destination port"))) {
+                        owners.put(PortList.key(port, tag.getProtocol()), name);
+                    }
+                }
+            }
+        });
+        undo.clear();
+    }
+
+    public void mark() {
+        undo.clear();
+    }
+
+    public void rollback() {
+        while (!undo.isEmpty()) {
+            undo.pop().run();
+        }
+    }
+
+    /**
+     * Whether none of the ports is used on this IP by another Service.
+     */
+    public boolean isFree(String ip, Collection<String> ports, String serviceName) {
+        Map<String, String> owners = portOwners.getOrDefault(ip, Map.of());
+        for (String port : ports) {
+            String owner = owners.get(port);
+            if (owner != null && !owner.equals(serviceName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void claim(String ip, Collection<String> ports, String serviceName) {
+        Map<String, String> owners = portOwners.get(ip);
+        if (owners == null) {
+            Map<String, String> created = new HashMap<>();
+            portOwners.put(ip, created);
+            undo.push(() -> {
+                if (created.isEmpty()) {
+                    portOwners.remove(ip);
+                }
+            });
+            owners = created;
+        }
+        for (String port : ports) {
+            put(owners, port, serviceName);
+        }
+    }
+
+    /**
+     * Forgets every port the Service has on this IP.
+     */
+    public void release(String ip, String serviceName) {
+        Map<String, String> owners = portOwners.get(ip);
+        if (owners == null) {
+            return;
+        }
+        owners.entrySet().removeIf(entry -> {
+            if (!entry.getValue().equals(serviceName)) {
+                return false;
+            }
+            String port = entry.getKey();
+            undo.push(() -> owners.put(port, serviceName));
+            return true;
+        });
+        if (owners.isEmpty()) {
+            portOwners.remove(ip);
+            undo.push(() -> portOwners.put(ip, owners));
+        }
+    }
+
+    /**
+     * Whether a Service still has a port on this IP.
+     */
+    public boolean isUsed(String ip) {
+        return portOwners.containsKey(ip);
+    }
+
+    /**
+     * IPs used by at least one Service.
+     */
+    public Collection<String> usedIPs() {
+        return portOwners.keySet();
+    }
+
+    /**
+     * @return the WAN interface entry, in CIDR notation, holding this IP
+     */
+    public Optional<String> address(String ip) {
+        return Optional.ofNullable(addresses.get(ip));
+    }
+
+    public void addAddress(String address) {
+        int slash = address.indexOf('/');
+        put(addresses, slash < 0 ? address : address.substring(0, slash), address);
+    }
+
+    public void removeAddress(String ip) {
+        String previous = addresses.remove(ip);
+        if (previous != null) {
+            undo.push(() -> addresses.put(ip, previous));
+        }
+    }
+
+    private void put(Map<String, String> map, String key, String value) {
+        String previous = map.put(key, value);
+        undo.push(() -> {
+            if (previous == null) {
+                map.remove(key);
+            } else {
+                map.put(key, previous);
+            }
+        });
+    }
+}
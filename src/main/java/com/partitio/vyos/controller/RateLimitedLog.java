@@ -0,0 +1,73 @@
+package com.partitio.vyos.controller;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Lets a repetitive message through at most once per interval for each key,
+ * e.g. once a minute per Service, and tells how many were skipped in between.
+ */
+public class RateLimitedLog {
+
+    // Forgets every key past this size rather than growing without bound
+    private static final int MAX_KEYS = 10_000;
+
+    private final Logger logger;
+    private final long intervalNanos;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    private static class Window {
+        private final long start;
+        private int suppressed;
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+
+    /**
+     * @param intervalMillis shortest delay between two messages of a key
+     */
+    public RateLimitedLog(Logger logger, long intervalMillis) {
+        this.logger = logger;
+        this.intervalNanos = intervalMillis * 1_000_000;
+    }
+
+    public void infof(String key, String format, Object... params) {
+        log(Logger.Level.INFO, key, format, params);
+    }
+
+    public void warnf(String key, String format, Object... params) {
+        log(Logger.Level.WARN, key, format, params);
+    }
+
+    private void log(Logger.Level level, String key, String format, Object... params) {
+        if (!logger.isEnabled(level)) {
+            return;
+        }
+        if (windows.size() > MAX_KEYS) {
+            windows.clear();
+        }
+        long now = System.nanoTime();
+        int[] skipped = { -1 };
+        windows.compute(key, (ignored, window) -> {
+            if (window == null || now - window.start >= intervalNanos) {
+                skipped[0] = window == null ? 0 : window.suppressed;
+                return new Window(now);
+            }
+            window.suppressed++;
+            return window;
+        });
+        if (skipped[0] < 0) {
+            return;
+        }
+        String message = String.format(format, params);
+        if (skipped[0] > 0) {
+            logger.logf(level, "%s suppressed=%d", message, skipped[0]);
+        } else {
+            logger.log(level, message);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.partitio.vyos.controller;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Work queue between the informer and the VyOS reconciles. Events are keyed by
+ * namespace/name, repeated events for a Service waiting in the queue are merged
+ * into one pending reconcile, and a Service is never reconciled by two workers
+ * at the same time.
+ */
+@ApplicationScoped
+public class ReconcileQueue {
+
+    private static final Logger LOG = Logger.getLogger(ReconcileQueue.class);
+
+    // Each worker blocks on the VyOS calls of the Service it reconciles, so this
+    // is how many calls can wait on the routers at once. Kept below the REST
+    // client connection pool size
+    @ConfigProperty(name = "controller.workers", defaultValue = "16")
+    private Integer workerCount;
+
+    @Inject
+    private ControllerMetrics metrics;
+
+    // Events waiting for each key, guarded by this
+    private final Map<String, Pending> pending = new HashMap<>();
+    // Keys being reconciled, guarded by this
+    private final Set<String> inFlight = new HashSet<>();
+    // Keys ready to be picked by a worker
+    private final BlockingQueue<String> ready = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private volatile boolean running = false;
+
+    private static class Pending {
+        private final long enqueuedAt = System.nanoTime();
+        private final List<ServiceEvent> events = new ArrayList<>();
+    }
+
+    @PostConstruct
+    void registerMetrics() {
+        metrics.gauge("controller.queue.depth", "Services waiting for a reconcile", this::depth,
+                "queue", "reconcile");
+        metrics.gauge("controller.queue.coalesced", "Events merged into a pending reconcile", this::coalesced,
+                "queue", "reconcile");
+    }
+
+    public synchronized void start(Consumer<ServiceEvent> handler) {
+        if (running) {
+            return;
+        }
+        running = true;
+        ThreadFactory threadFactory = threadFactory();
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = threadFactory.newThread(() -> work(handler));
+            worker.setName("reconcile-worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        LOG.infof("Reconcile queue started, workers=%d", workerCount);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        workers.forEach(Thread::interrupt);
+        workers.clear();
+    }
+
+    public synchronized void submit(String key, ServiceEvent event) {
+        Pending waiting = pending.get(key);
+        if (waiting == null) {
+            waiting = new Pending();
+            waiting.events.add(event);
+            pending.put(key, waiting);
+            // A key being reconciled is requeued by its worker once done
+            if (!inFlight.contains(key)) {
+                ready.add(key);
+            }
+            return;
+        }
+        // At most one endpoints event waits, after the informer events and with
+        // the latest state of the Service, so alternating updates and endpoint
+        // changes cannot grow the list. An add or update of a Service already
+        // managed does not look at its endpoints, so it does not replace it
+        int last = waiting.events.size() - 1;
+        ServiceEvent endpoints = null;
+        if (waiting.events.get(last).getType() == ServiceEvent.Type.ENDPOINTS) {
+            endpoints = waiting.events.remove(last--);
+        }
+        if (event.getType() == ServiceEvent.Type.ENDPOINTS) {
+            waiting.events.add(event);
+            if (endpoints != null) {
+                coalesced.incrementAndGet();
+            }
+            return;
+        }
+        ServiceEvent merged = last < 0 ? null : waiting.events.get(last).merge(event);
+        if (merged == null) {
+            waiting.events.add(event);
+        } else if (merged.getType() == ServiceEvent.Type.DELETED && last > 0
+                && waiting.events.get(last - 1).getType() == ServiceEvent.Type.DELETED) {
+            // Created again then deleted again, the delete queued before covers
+            // both, so repeated delete and create cycles cannot grow the list
+            waiting.events.remove(last);
+            waiting.events.set(last - 1, merged);
+            coalesced.incrementAndGet();
+        } else {
+            waiting.events.set(last, merged);
+            coalesced.incrementAndGet();
+        }
+        // A deleted Service has no endpoints left to look at
+        if (endpoints != null && event.getType() != ServiceEvent.Type.DELETED) {
+            waiting.events.add(ServiceEvent.endpoints(event.getService()));
+        }
+    }
+
+    /**
+     * Drops every waiting event, used when a full reconcile covers them.
+     *
+     * @return the number of Services that were waiting
+     */
+    public synchronized int clear() {
+        int dropped = pending.size();
+        pending.clear();
+        ready.clear();
+        return dropped;
+    }
+
+    /**
+     * Number of Services waiting for a reconcile.
+     */
+    public synchronized int depth() {
+        return pending.size();
+    }
+
+    /**
+     * Number of events merged into an already pending reconcile.
+     */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    private void work(Consumer<ServiceEvent> handler) {
+        while (running) {
+            String key;
+            try {
+                key = ready.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Pending work;
+            synchronized (this) {
+                work = pending.remove(key);
+                if (work == null) {
+                    continue;
+                }
+                inFlight.add(key);
+            }
+            metrics.queueWait(System.nanoTime() - work.enqueuedAt);
+            try {
+                for (ServiceEvent event : work.events) {
+                    handler.accept(event);
+                }
+            } catch (RuntimeException e) {
+                LOG.errorf(e, "Reconcile failed, service=%s", key);
+            } finally {
+                synchronized (this) {
+                    inFlight.remove(key);
+                    if (pending.containsKey(key)) {
+                        ready.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Uses virtual threads when the JDK provides them, platform threads
+     * otherwise, e.g. on JDK 17. Either way a worker is held for the whole of
+     * each VyOS call.
+     */
+    private static ThreadFactory threadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.partitio.vyos.controller;
+
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+
+/**
+ * In-memory pool of VyOS rule numbers. Numbers go from first to last with a
+ * fixed step, and each of them is tracked as a bit so allocation does not need
+ * to scan a list nor to query VyOS.
+ */
+public class RuleNumberPool {
+
+    private final int first;
+    private final int last;
+    private final int step;
+    private final int size;
+    private final BitSet used;
+    // Next slot to look at, avoids rescanning the beginning of the pool
+    private int hint = 0;
+
+    public RuleNumberPool(int first, int last, int step) {
+        this.first = first;
+        this.last = last;
+        this.step = step;
+        this.size = last < first ? 0 : (last - first) / step + 1;
+        this.used = new BitSet(size);
+    }
+
+    public synchronized int allocate() {
+        int slot = used.nextClearBit(hint);
+        if (slot >= size) {
+            slot = used.nextClearBit(0);
+        }
+        if (slot >= size) {
+            throw new NoSuchElementException("No rule number left between " + first + " and " + last);
+        }
+        used.set(slot);
+        hint = slot + 1;
+        return first + slot * step;
+    }
+
+    public synchronized void markUsed(int number) {
+        if (contains(number)) {
+            used.set(slot(number));
+        }
+    }
+
+    public synchronized void release(int number) {
+        if (contains(number)) {
+            int slot = slot(number);
+            used.clear(slot);
+            hint = Math.min(hint, slot);
+        }
+    }
+
+    public synchronized void clear() {
+        used.clear();
+        hint = 0;
+    }
+
+    public synchronized int free() {
+        return size - used.cardinality();
+    }
+
+    public boolean contains(int number) {
+        return number >= first && number <= last && (number - first) % step == 0;
+    }
+
+    private int slot(int number) {
+        return (number - first) / step;
+    }
+}
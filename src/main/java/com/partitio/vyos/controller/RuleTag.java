@@ -0,0 +1,97 @@
+package com.partitio.vyos.controller;
+
+/**
+ * Identifies a rule created by the controller from its description, e.g.
+ * "Auto Kube Firewall rule for default/web, IP : 10.0.0.1, protocol : tcp".
+ * Rules written before protocols were supported carry ", port : 80" instead
+ * and are tcp rules.
+ */
+public class RuleTag {
+
+    public enum Kind {
+        FIREWALL("Auto Kube Firewall rule for", VyOSRuleTable.FIREWALL),
+        NAT("Auto Kube Nat rule for", VyOSRuleTable.DESTINATION_NAT),
+        HAIRPIN_NAT("Auto Kube Hairpin Nat rule for", VyOSRuleTable.DESTINATION_NAT),
+        HAIRPIN_SOURCE_NAT("Auto Kube Hairpin Nat Source rule for", VyOSRuleTable.SOURCE_NAT),
+        FIREWALL_IPV6("Auto Kube IPv6 Firewall rule for", VyOSRuleTable.FIREWALL_IPV6);
+
+        private final String prefix;
+        private final VyOSRuleTable table;
+
+        Kind(String prefix, VyOSRuleTable table) {
+            this.prefix = prefix;
+            this.table = table;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public VyOSRuleTable getTable() {
+            return table;
+        }
+    }
+
+    private static final String PROTOCOL_FIELD = ", protocol : ";
+    private static final String LEGACY_PORT_FIELD = ", port : ";
+
+    private final Kind kind;
+    private final String serviceName;
+    private final String protocol;
+
+    public RuleTag(Kind kind, String serviceName, String protocol) {
+        this.kind = kind;
+        this.serviceName = serviceName;
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return the tag of a controller rule, or null if the description was not
+     *         written by the controller
+     */
+    public static RuleTag parse(String description) {
+        if (description == null) {
+            return null;
+        }
+        for (Kind kind : Kind.values()) {
+            String prefix = kind.prefix + " ";
+            if (!description.startsWith(prefix)) {
+                continue;
+            }
+            int nameEnd = description.indexOf(',', prefix.length());
+            if (nameEnd < 0) {
+                return null;
+            }
+            String serviceName = description.substring(prefix.length(), nameEnd);
+            int protocolStart = description.indexOf(PROTOCOL_FIELD);
+            if (protocolStart < 0) {
+                return description.contains(LEGACY_PORT_FIELD) ? new RuleTag(kind, serviceName, "tcp") : null;
+            }
+            protocolStart += PROTOCOL_FIELD.length();
+            int protocolEnd = description.indexOf(',', protocolStart);
+            return new RuleTag(kind, serviceName,
+                    description.substring(protocolStart, protocolEnd < 0 ? description.length() : protocolEnd).trim());
+        }
+        return null;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Key of the rule within its Service, a Service has one rule of each kind
+     * per protocol.
+     */
+    public String key() {
+        return kind + "/" + protocol;
+    }
+}
@@ -0,0 +1,89 @@
+package com.partitio.vyos.controller;
+
+import io.fabric8.kubernetes.api.model.Service;
+
+/**
+ * Informer event waiting in the {@link ReconcileQueue}.
+ */
+public class ServiceEvent {
+
+    public enum Type {
+        ADDED,
+        UPDATED,
+        DELETED,
+        // Ready backends of the Service appeared or went away
+        ENDPOINTS
+    }
+
+    private final Type type;
+    private final Service oldService;
+    private final Service service;
+
+    private ServiceEvent(Type type, Service oldService, Service service) {
+        this.type = type;
+        this.oldService = oldService;
+        this.service = service;
+    }
+
+    public static ServiceEvent added(Service service) {
+        return new ServiceEvent(Type.ADDED, null, service);
+    }
+
+    public static ServiceEvent updated(Service newService, Service oldService) {
+        return new ServiceEvent(Type.UPDATED, oldService, newService);
+    }
+
+    public static ServiceEvent deleted(Service service) {
+        return new ServiceEvent(Type.DELETED, null, service);
+    }
+
+    public static ServiceEvent endpoints(Service service) {
+        return new ServiceEvent(Type.ENDPOINTS, null, service);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Service before an update, null for other event types.
+     */
+    public Service getOldService() {
+        return oldService;
+    }
+
+    /**
+     * Added, updated or deleted Service, or the Service whose endpoints
+     * changed.
+     */
+    public Service getService() {
+        return service;
+    }
+
+    /**
+     * Merges the next informer event for the same Service into this one.
+     * Endpoints events are collapsed by the {@link ReconcileQueue}.
+     *
+     * @return the merged event, or null if both events have to be handled in
+     *         turn
+     */
+    public ServiceEvent merge(ServiceEvent next) {
+        if (type == Type.DELETED) {
+            // A Service created again after a delete needs both reconciles
+            return next.type == Type.DELETED ? next : null;
+        }
+        switch (next.type) {
+            case DELETED:
+                return next;
+            case UPDATED:
+            case ADDED:
+                // Keep the oldest known state so that the update sees every change
+                if (type == Type.ADDED) {
+                    return added(next.service);
+                }
+                return updated(next.service, oldService);
+            default:
+                return null;
+        }
+    }
+}
@@ -1,20 +1,33 @@
 package com.partitio.vyos.controller;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.jboss.logging.Logger;
+import org.jboss.logging.MDC;
+
 import io.fabric8.kubernetes.api.model.LoadBalancerIngress;
 import io.fabric8.kubernetes.api.model.Service;
 import io.fabric8.kubernetes.api.model.ServicePort;
 import io.fabric8.kubernetes.api.model.ServiceSpec;
 import io.fabric8.kubernetes.api.model.ServiceStatus;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -22,12 +35,26 @@ import jakarta.inject.Inject;
 @ApplicationScoped
 public class ServiceWatcher implements ResourceEventHandler<Service> {
 
+    private static final Logger LOG = Logger.getLogger(ServiceWatcher.class);
+    // Resyncs repeat the same messages for every Service, once a minute is enough
+    private static final RateLimitedLog SAMPLED_LOG = new RateLimitedLog(LOG, 60_000);
+
+    // Allocation state written by older versions, now kept in VyOSBinding. They
+    // are read until a binding exists and then removed
     public static final String natRuleNumberAnnotation = "com.partitio.vyos.controller/nat-rule-numbers";
     public static final String hairpinNatSourceRuleNumberAnnotation = "com.partitio.vyos.controller/hairpin-nat-source-rule-numbers";
     public static final String hairpinNatDestinationRuleNumberAnnotation = "com.partitio.vyos.controller/hairpin-nat-destination-rule-numbers";
     public static final String firewallRuleNumberAnnotation = "com.partitio.vyos.controller/firewall-rule-numbers";
     public static final String publicIPAnnotation = "com.partitio.vyos.controller/public-ip-address";
     public static final String managedAnnotation = "com.partitio.vyos.controller/service-is-managed";
+    // Set by users to pin a Service to a VyOS router
+    public static final String routerAnnotation = "com.partitio.vyos.controller/router";
+    // Set by users to pin the public IP of a Service, it must be in the router pool
+    public static final String requestedPublicIPAnnotation = "com.partitio.vyos.controller/requested-public-ip";
+    public static final String assignedRouterAnnotation = "com.partitio.vyos.controller/assigned-router";
+    private static final List<String> legacyAnnotations = List.of(natRuleNumberAnnotation,
+            hairpinNatSourceRuleNumberAnnotation, hairpinNatDestinationRuleNumberAnnotation,
+            firewallRuleNumberAnnotation, publicIPAnnotation, managedAnnotation, assignedRouterAnnotation);
 
     @Inject
     private VyOSController vyosController;
@@ -35,8 +62,23 @@ public class ServiceWatcher implements ResourceEventHandler<Service> {
     @Inject
     private KubernetesClient client;
 
+    @Inject
+    private ReconcileQueue reconcileQueue;
+
+    @Inject
+    private VyOSBindings bindings;
+
+    @Inject
+    private EndpointSliceWatcher endpoints;
+
+    @Inject
+    private ControllerMetrics metrics;
+
     private ObjectMapper objectMapper = new ObjectMapper();
 
+    // Content hash of the last successful reconcile of each Service
+    private final Map<String, Integer> reconciledHashes = new ConcurrentHashMap<>();
+
     private void checkAndReactOnAddedService(Service service) throws Exception {
         // Added service is only to find services added and configured while app was not
         // running.
@@ -44,106 +86,293 @@ public class ServiceWatcher implements ResourceEventHandler<Service> {
         // managed annotation
         // Create NAT, Firewall rules and annotate it
         if (isServiceManageable(service)) {
-            Map<String, String> annotations = service.getMetadata().getAnnotations();
-            if (annotations.containsKey(managedAnnotation) && annotations.get(managedAnnotation).equals("true")) {
-                System.out.println("Service " + service.getMetadata().getName() + " on namespace "
-                        + service.getMetadata().getNamespace() + " is already managed, ignoring...");
+            if (isManaged(service)) {
+                SAMPLED_LOG.infof(key(service), "Service already managed, ignoring it, service=%s", key(service));
                 return;
             }
-            System.out.println("Service " + service.getMetadata().getName() + " on namespace "
-                    + service.getMetadata().getNamespace() + " is not managed yet, reconciling...");
-            createVyOSRulesAndAnnotateService(service);
+            LOG.infof("Service not managed yet, reconciling it, service=%s", key(service));
+            createVyOSRulesAndBindService(service);
         }
     }
 
     private boolean isServiceManageable(Service service) {
         ServiceSpec spec = service.getSpec();
-        ServiceStatus status = service.getStatus();
         String serviceType = spec.getType();
-        List<LoadBalancerIngress> loadBalancerIngresses = status.getLoadBalancer().getIngress();
-        if (loadBalancerIngresses.isEmpty()) {
-            return false;
-        }
-        LoadBalancerIngress ingress = status.getLoadBalancer().getIngress().get(0);
+        List<String> ingressIPs = ingressIPs(service);
+        LOG.debugf("Service manageability, service=%s type=%s ingressIPs=%s", key(service), serviceType,
+                ingressIPs);
+        return ("LoadBalancer".equals(serviceType) && !ingressIPs.isEmpty());
+    }
 
-        String externalIP = Objects.requireNonNull(ingress.getIp());
-        System.out.println("service type is " + serviceType + " for " + service.getMetadata().getName());
-        System.out.println("service externalIP is empty for " + service.getMetadata().getName() + " : " + externalIP.isEmpty());
-        return (serviceType.equals("LoadBalancer") && !externalIP.isEmpty());
+    /**
+     * IPs of every load balancer ingress entry, a dual-stack Service has one of
+     * each family. Entries with only a hostname are skipped.
+     */
+    private static List<String> ingressIPs(Service service) {
+        ServiceStatus status = service.getStatus();
+        List<String> ips = new ArrayList<>();
+        if (status == null || status.getLoadBalancer() == null || status.getLoadBalancer().getIngress() == null) {
+            return ips;
+        }
+        for (LoadBalancerIngress ingress : status.getLoadBalancer().getIngress()) {
+            if (ingress.getIp() != null && !ingress.getIp().isEmpty()) {
+                ips.add(ingress.getIp());
+            }
+        }
+        return ips;
     }
 
-    private void createVyOSRulesAndAnnotateService(Service service) throws Exception {
-        String ip = service.getStatus().getLoadBalancer().getIngress().get(0).getIp();
-        String name = service.getMetadata().getNamespace() + "/" + service.getMetadata().getName();
+    private DesiredService desiredService(Service service) {
+        // The first IP of each family, VyOS only NATs the IPv4 one
+        List<String> ingressIPs = ingressIPs(service);
+        String ip = ingressIPs.stream().filter(address -> !address.contains(":")).findFirst().orElse(null);
+        String ipv6 = ingressIPs.stream().filter(address -> address.contains(":")).findFirst().orElse(null);
         List<ServicePort> ports = service.getSpec().getPorts();
-        VyOSResults result = vyosController.createRules(ip, name, ports);
-        // Apply annotations to the service
-        Map<String, String> annotations = new HashMap<>();
-        annotations.put(publicIPAnnotation, result.publicIP);
-        annotations.put(managedAnnotation, "true");
-        annotations.put(firewallRuleNumberAnnotation, objectMapper.writeValueAsString(result.firewallRules));
-        annotations.put(natRuleNumberAnnotation, objectMapper.writeValueAsString(result.natRules));
-        annotations.put(hairpinNatDestinationRuleNumberAnnotation,
-                objectMapper.writeValueAsString(result.hairpinNatDestinationRules));
-        annotations.put(hairpinNatSourceRuleNumberAnnotation,
-                objectMapper.writeValueAsString(result.hairpinNatSourceRules));
-        service.getMetadata().setAnnotations(annotations);
-        client.services().inNamespace(service.getMetadata().getNamespace()).resource(service).patch();
-    }
-
-    private void checkAndReactOnDeletedService(Service service) throws JsonMappingException, JsonProcessingException {
-        // Check if service is annotated
-        if (!service.getMetadata().getAnnotations().containsKey(managedAnnotation)) {
+        return new DesiredService(key(service), pinnedRouter(service), ip, ipv6, requestedPublicIP(service), ports,
+                endpoints.isReady(service));
+    }
+
+    private static String requestedPublicIP(Service service) {
+        Map<String, String> annotations = service.getMetadata().getAnnotations();
+        return annotations == null ? null : annotations.get(requestedPublicIPAnnotation);
+    }
+
+    /**
+     * Router the Service asks for through its annotation, null when the
+     * controller picks it.
+     */
+    public String pinnedRouter(Service service) {
+        Map<String, String> annotations = service.getMetadata().getAnnotations();
+        return annotations == null ? null : annotations.get(routerAnnotation);
+    }
+
+    /**
+     * Whether the Service has rules pushed by the controller, according to its
+     * binding or to the annotations of older versions.
+     */
+    private boolean isManaged(Service service) {
+        Map<String, String> annotations = service.getMetadata().getAnnotations();
+        return bindings.status(service) != null
+                || (annotations != null && "true".equals(annotations.get(managedAnnotation)));
+    }
+
+    /**
+     * Router the rules of a managed Service were pushed to, null when unknown.
+     */
+    public String assignedRouter(Service service) {
+        VyOSBindingStatus status = bindings.status(service);
+        if (status != null) {
+            return status.router;
+        }
+        Map<String, String> annotations = service.getMetadata().getAnnotations();
+        return annotations == null ? null : annotations.get(assignedRouterAnnotation);
+    }
+
+    /**
+     * Router holding the rules of a managed Service, which may differ from the
+     * one it would be assigned to now.
+     */
+    private String currentRouter(Service service) {
+        String assigned = assignedRouter(service);
+        if (assigned != null && vyosController.routerNames().contains(assigned)) {
+            return assigned;
+        }
+        return pinnedRouter(service);
+    }
+
+    private void createVyOSRulesAndBindService(Service service) throws Exception {
+        // Rules already in VyOS are kept, only the missing or different ones are
+        // pushed
+        DesiredService desired = desiredService(service);
+        VyOSResults result = vyosController.reconcileService(desired);
+        endpoints.reconciled(desired.getName(), desired.isReady());
+        bindService(service, result);
+    }
+
+    private void bindService(Service service, VyOSResults result) {
+        bindings.apply(service, result);
+        removeLegacyAnnotations(service);
+    }
+
+    /**
+     * Removes the annotations older versions wrote. Only these keys are
+     * patched, annotations set by users are left alone.
+     */
+    private void removeLegacyAnnotations(Service service) {
+        Map<String, String> annotations = service.getMetadata().getAnnotations();
+        if (annotations == null || legacyAnnotations.stream().noneMatch(annotations::containsKey)) {
+            return;
+        }
+        client.services().inNamespace(service.getMetadata().getNamespace()).withName(service.getMetadata().getName())
+                .edit(current -> {
+                    if (current.getMetadata().getAnnotations() != null) {
+                        legacyAnnotations.forEach(current.getMetadata().getAnnotations()::remove);
+                    }
+                    return current;
+                });
+    }
+
+    private void checkAndReactOnDeletedService(Service service) throws Exception {
+        // The binding goes away with the Service, it may be gone already
+        if (!isManaged(service) && !"LoadBalancer".equals(service.getSpec().getType())) {
             return;
         }
+        endpoints.forget(key(service));
         deleteServiceRules(service);
     }
 
-    private void deleteServiceRules(Service service) throws JsonMappingException, JsonProcessingException {
-        String IPaddress = service.getMetadata().getAnnotations().get(publicIPAnnotation);
-        // For each annotation of the service, undo the vyos configuration
+    private void deleteServiceRules(Service service) throws Exception {
+        // Rules are found from their description in VyOS, annotations may be stale
+        vyosController.deleteServiceRules(key(service), currentRouter(service));
+    }
 
-        Map<String, Integer> firewallRules = objectMapper
-                .readValue(service.getMetadata().getAnnotations().get(firewallRuleNumberAnnotation), Map.class);
-        Map<String, Integer> destinationNatRules = objectMapper
-                .readValue(service.getMetadata().getAnnotations().get(natRuleNumberAnnotation), Map.class);
-        Map<String, Integer> hairpinDestinationNatRules = objectMapper.readValue(
-                service.getMetadata().getAnnotations().get(hairpinNatDestinationRuleNumberAnnotation), Map.class);
-        Map<String, Integer> hairpinSourceNatRules = objectMapper.readValue(
-                service.getMetadata().getAnnotations().get(hairpinNatSourceRuleNumberAnnotation), Map.class);
+    /**
+     * Services whose rules must be kept.
+     */
+    public List<DesiredService> manageableServices(Collection<Service> services) {
+        List<DesiredService> manageableServices = new ArrayList<>();
+        for (Service service : services) {
+            if (isServiceManageable(service)) {
+                manageableServices.add(desiredService(service));
+            }
+        }
+        return manageableServices;
+    }
 
-        vyosController.deleteRules(IPaddress, firewallRules, destinationNatRules, hairpinDestinationNatRules,
-                hairpinSourceNatRules);
+    /**
+     * Whether the rules of a Service that is not to be exposed may be removed:
+     * when the Service is watched, or does not exist anymore. A Service left
+     * out by the namespace, label, field or opt-in filters keeps its rules,
+     * another instance may manage it.
+     *
+     * @param watched Services of the informer cache
+     */
+    public Predicate<String> removableRules(Collection<Service> watched) {
+        Set<String> watchedKeys = watched.stream().map(ServiceWatcher::key).collect(Collectors.toSet());
+        return serviceKey -> watchedKeys.contains(serviceKey) || !exists(serviceKey);
+    }
+
+    private boolean exists(String serviceKey) {
+        String[] namespaceAndName = serviceKey.split("/", 2);
+        if (namespaceAndName.length < 2) {
+            return false;
+        }
+        try {
+            return client.services().inNamespace(namespaceAndName[0]).withName(namespaceAndName[1]).get() != null;
+        } catch (KubernetesClientException e) {
+            // Possibly a namespace this instance may not read, rules are kept
+            LOG.warnf("Service lookup failed, keeping its rules, service=%s error=%s", serviceKey,
+                    e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Reconciles every watched Service against a single read of VyOS, and
+     * removes the rules of Services that are gone or not manageable anymore.
+     * Services the informer does not watch keep their rules until deleted.
+     */
+    public void reconcileAll(Collection<Service> services) throws Exception {
+        Map<String, Service> manageableServices = new HashMap<>();
+        for (Service service : services) {
+            if (isServiceManageable(service)) {
+                manageableServices.put(key(service), service);
+            }
+        }
+        List<DesiredService> desiredServices = new ArrayList<>();
+        manageableServices.values().forEach(service -> desiredServices.add(desiredService(service)));
+        Map<String, VyOSResults> results = vyosController.reconcileAll(desiredServices, removableRules(services));
+        // Services left out of their router batch keep their binding, the next
+        // event or resync retries them
+        desiredServices.stream().filter(desired -> isReconciled(results.get(desired.getName())))
+                .forEach(desired -> endpoints.reconciled(desired.getName(), desired.isReady()));
+        // Unchanged bindings are not written again
+        for (Service service : manageableServices.values()) {
+            VyOSResults result = results.get(key(service));
+            if (isReconciled(result)) {
+                try {
+                    bindService(service, result);
+                } catch (RuntimeException e) {
+                    LOG.errorf(e, "Binding failed, service=%s", key(service));
+                }
+            }
+        }
+    }
+
+    private static boolean isReconciled(VyOSResults result) {
+        return result != null && result.error == null;
+    }
+
+    /**
+     * Returns the rule numbers a managed Service claims through its binding, or
+     * the annotations of older versions, by VyOS rule table. Ports of one
+     * protocol share a rule, each number is only claimed once.
+     */
+    public Map<VyOSRuleTable, Set<Integer>> claimedRuleNumbers(Service service)
+            throws JsonMappingException, JsonProcessingException {
+        Map<VyOSRuleTable, Set<Integer>> claims = new EnumMap<>(VyOSRuleTable.class);
+        Map<String, Integer> firewallRules;
+        Map<String, Integer> destinationNatRules;
+        Map<String, Integer> hairpinDestinationNatRules;
+        Map<String, Integer> hairpinSourceNatRules;
+        VyOSBindingStatus status = bindings.status(service);
+        Map<String, String> annotations = service.getMetadata().getAnnotations();
+        if (status != null) {
+            firewallRules = status.firewallRules;
+            destinationNatRules = status.natRules;
+            hairpinDestinationNatRules = status.hairpinNatDestinationRules;
+            hairpinSourceNatRules = status.hairpinNatSourceRules;
+        } else if (annotations != null && annotations.containsKey(managedAnnotation)) {
+            TypeReference<Map<String, Integer>> type = new TypeReference<>() {
+            };
+            firewallRules = objectMapper.readValue(annotations.get(firewallRuleNumberAnnotation), type);
+            destinationNatRules = objectMapper.readValue(annotations.get(natRuleNumberAnnotation), type);
+            hairpinDestinationNatRules = objectMapper.readValue(
+                    annotations.get(hairpinNatDestinationRuleNumberAnnotation), type);
+            hairpinSourceNatRules = objectMapper.readValue(annotations.get(hairpinNatSourceRuleNumberAnnotation),
+                    type);
+        } else {
+            return claims;
+        }
+        Set<Integer> destinationNatNumbers = new TreeSet<>(destinationNatRules.values());
+        destinationNatNumbers.addAll(hairpinDestinationNatRules.values());
+        claims.put(VyOSRuleTable.FIREWALL, new TreeSet<>(firewallRules.values()));
+        claims.put(VyOSRuleTable.DESTINATION_NAT, destinationNatNumbers);
+        claims.put(VyOSRuleTable.SOURCE_NAT, new TreeSet<>(hairpinSourceNatRules.values()));
+        // Older versions had no IPv6 rules
+        if (status != null && status.firewallIPv6Rules != null) {
+            claims.put(VyOSRuleTable.FIREWALL_IPV6, new TreeSet<>(status.firewallIPv6Rules.values()));
+        }
+        return claims;
     }
 
     private void checkAndReactOnModifiedService(Service newService, Service oldService) throws Exception {
-        boolean containsManagedAnnotation = newService.getMetadata().getAnnotations().containsKey(managedAnnotation);
+        boolean isServiceManaged = isManaged(newService);
         boolean isServiceManageable = isServiceManageable(newService);
 
         // If service is not manageable and doesn't have annotations, ignore
-        if (!isServiceManageable && !containsManagedAnnotation) {
-            System.out.println(
-                    "Service " + newService.getMetadata().getName() + " on namespace is not interesting, ignoring");
+        if (!isServiceManageable && !isServiceManaged) {
+            SAMPLED_LOG.infof(key(newService), "Service not interesting, ignoring it, service=%s", key(newService));
             return;
         }
 
         // If Service is NOT manageable but has annotations
         // It means service type has been modified
         // Delete rules and annotations
-        if (!isServiceManageable && containsManagedAnnotation) {
-            System.out.println("Service " + newService.getMetadata().getName()
-                    + " type has changed to not manageable, removing rules");
+        if (!isServiceManageable && isServiceManaged) {
+            LOG.infof("Service not manageable anymore, removing its rules, service=%s", key(newService));
             deleteServiceRules(newService);
-            deleteServiceAnnotations(newService);
+            unbindService(newService);
+            return;
         }
 
         // If Service is manageable
         // And if Service does not have managed annotation
         // Create NAT, Firewall rules and annotate it
-        if (isServiceManageable && !containsManagedAnnotation) {
-            System.out.println("Service " + newService.getMetadata().getName() + " on namespace "
-                    + newService.getMetadata().getNamespace() + " is not managed yet, reconciling...");
-            createVyOSRulesAndAnnotateService(newService);
+        if (isServiceManageable && !isServiceManaged) {
+            LOG.infof("Service not managed yet, reconciling it, service=%s", key(newService));
+            createVyOSRulesAndBindService(newService);
+            return;
         }
 
         // If Service is manageable
@@ -151,67 +380,138 @@ public class ServiceWatcher implements ResourceEventHandler<Service> {
         // It may mean service has been modified.
         // Compare publicIP, and ports with old service to see if it has changed.
         // IF CHANGED :
-        // Use the annotations to delete existing rules and recreate them
+        // Diff the rules with VyOS, only rules of changed ports are rewritten
         // Reannotate the service
-        boolean servicesAlike = checkIfOldAndNewServiceAreAlike(oldService, newService);
-        if (!servicesAlike) {
-            deleteServiceRules(newService);
-            createVyOSRulesAndAnnotateService(newService);
+        if (isServiceManageable && isServiceManaged
+                && !checkIfOldAndNewServiceAreAlike(oldService, newService)) {
+            // Rules of a Service pinned to another router are moved over
+            String key = key(newService);
+            String oldRouter = vyosController.routerFor(key, currentRouter(oldService));
+            String newRouter = vyosController.routerFor(key, pinnedRouter(newService));
+            if (!oldRouter.equals(newRouter)) {
+                LOG.infof("Service moves to another VyOS router, service=%s router=%s newRouter=%s", key, oldRouter,
+                        newRouter);
+                vyosController.deleteServiceRules(key, oldRouter);
+            }
+            createVyOSRulesAndBindService(newService);
         }
+    }
 
+    private void checkAndReactOnEndpointsChange(Service service) throws Exception {
+        // Only the firewall action changes, the rules are diffed as usual
+        if (isServiceManageable(service) && isManaged(service)) {
+            createVyOSRulesAndBindService(service);
+        }
     }
 
-    private void deleteServiceAnnotations(Service newService) {
-        Map<String, String> annotations = newService.getMetadata().getAnnotations();
-        annotations.remove(managedAnnotation);
-        annotations.remove(publicIPAnnotation);
-        annotations.remove(firewallRuleNumberAnnotation);
-        annotations.remove(natRuleNumberAnnotation);
-        annotations.remove(hairpinNatDestinationRuleNumberAnnotation);
-        annotations.remove(hairpinNatSourceRuleNumberAnnotation);
-        client.services().inNamespace(newService.getMetadata().getNamespace()).resource(newService).patch();
+    private void unbindService(Service service) {
+        endpoints.forget(key(service));
+        bindings.delete(service);
+        removeLegacyAnnotations(service);
     }
 
     private boolean checkIfOldAndNewServiceAreAlike(Service oldService, Service newService) {
         // Check privateIP
         // Check ports
-        List<LoadBalancerIngress> loadBalancerIngresses = newService.getStatus().getLoadBalancer().getIngress();
-        if (loadBalancerIngresses.isEmpty()) {
+        List<String> newIPs = ingressIPs(newService);
+        if (newIPs.isEmpty()) {
             return false;
         }
-        String newIP = newService.getStatus().getLoadBalancer().getIngress().get(0).getIp();
-        String oldIP = oldService.getStatus().getLoadBalancer().getIngress().get(0).getIp();
-        boolean ipIsSame = newIP.equals(oldIP);
-        boolean arePortsSame = newService.getSpec().getPorts().equals(oldService.getSpec().getPorts());
-        return (ipIsSame && arePortsSame);
+        boolean ipIsSame = newIPs.equals(ingressIPs(oldService));
+        boolean arePortsSame = Objects.equals(newService.getSpec().getPorts(), oldService.getSpec().getPorts());
+        boolean isRouterSame = Objects.equals(pinnedRouter(newService), pinnedRouter(oldService));
+        boolean isRequestedPublicIPSame = Objects.equals(requestedPublicIP(newService),
+                requestedPublicIP(oldService));
+        return (ipIsSame && arePortsSame && isRouterSame && isRequestedPublicIPSame);
     }
 
-    @Override
-    public void onAdd(Service service) {
+    /**
+     * Reconciles one event taken from the {@link ReconcileQueue}, on a worker
+     * thread.
+     */
+    public void reconcile(ServiceEvent event) {
+        String key = key(event.getService());
+        long start = System.nanoTime();
+        MDC.put("service", key);
         try {
-            checkAndReactOnAddedService(service);
+            switch (event.getType()) {
+                case ADDED:
+                    checkAndReactOnAddedService(event.getService());
+                    break;
+                case UPDATED:
+                    checkAndReactOnModifiedService(event.getService(), event.getOldService());
+                    break;
+                case DELETED:
+                    checkAndReactOnDeletedService(event.getService());
+                    break;
+                case ENDPOINTS:
+                    checkAndReactOnEndpointsChange(event.getService());
+                    break;
+            }
+            if (event.getType() == ServiceEvent.Type.DELETED) {
+                reconciledHashes.remove(key);
+            } else {
+                reconciledHashes.put(key, contentHash(event.getService()));
+            }
+            metrics.reconcile(event.getType(), "success", System.nanoTime() - start);
         } catch (Exception e) {
-            e.printStackTrace();
+            metrics.reconcile(event.getType(), "failure", System.nanoTime() - start);
+            // Next resync has to go through
+            reconciledHashes.remove(key);
+            LOG.errorf(e, "Reconcile failed, service=%s event=%s", key, event.getType());
+        } finally {
+            MDC.remove("service");
         }
     }
 
+    /**
+     * Hash of everything a reconcile looks at.
+     */
+    private static int contentHash(Service service) {
+        return Objects.hash(service.getSpec(), service.getStatus(), service.getMetadata().getAnnotations());
+    }
+
+    /**
+     * A resync replays the cached Service, with the same resourceVersion. If its
+     * content was reconciled successfully already there is nothing to do.
+     */
+    private boolean isUnchangedResync(Service newService, Service oldService) {
+        String newVersion = newService.getMetadata().getResourceVersion();
+        if (newVersion == null || !newVersion.equals(oldService.getMetadata().getResourceVersion())) {
+            return false;
+        }
+        Integer reconciledHash = reconciledHashes.get(key(newService));
+        return reconciledHash != null && reconciledHash == contentHash(newService);
+    }
+
+    static String key(Service service) {
+        return service.getMetadata().getNamespace() + "/" + service.getMetadata().getName();
+    }
+
+    // Informer callbacks only queue the work, so that a slow router never blocks
+    // event delivery
+
+    @Override
+    public void onAdd(Service service) {
+        metrics.informerEvent("add");
+        reconcileQueue.submit(key(service), ServiceEvent.added(service));
+    }
+
     @Override
     public void onUpdate(Service newService, Service oldService) {
-        System.out.println("service updatefound, name is " + newService.getMetadata().getName());
-        try {
-            checkAndReactOnModifiedService(newService, oldService);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (isUnchangedResync(newService, oldService)) {
+            metrics.informerEvent("resync");
+            return;
         }
+        metrics.informerEvent("update");
+        LOG.debugf("Service updated, service=%s", key(newService));
+        reconcileQueue.submit(key(newService), ServiceEvent.updated(newService, oldService));
     }
 
     @Override
     public void onDelete(Service service, boolean deletedFinalStateUnknown) {
-        System.out.println("service delete found, name is " + service.getMetadata().getName());
-        try {
-            checkAndReactOnDeletedService(service);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-        }
+        metrics.informerEvent("delete");
+        LOG.debugf("Service deleted, service=%s", key(service));
+        reconcileQueue.submit(key(service), ServiceEvent.deleted(service));
     }
 }
@@ -0,0 +1,50 @@
+package com.partitio.vyos.controller;
+
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Reports ready once the informer caches are synced and the VyOS allocations
+ * loaded, and for the leader once the initial full reconcile is done.
+ */
+@Readiness
+@ApplicationScoped
+public class StartupReadinessCheck implements HealthCheck {
+
+    private final long startedAt = System.nanoTime();
+    private volatile boolean synced = false;
+    private volatile boolean leading = false;
+    private volatile boolean reconciled = false;
+    private volatile long syncMillis = -1;
+    private volatile long reconcileMillis = -1;
+    private volatile int services = 0;
+
+    public void synced() {
+        syncMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        synced = true;
+    }
+
+    public void leading() {
+        leading = true;
+    }
+
+    public void reconciled(int services, long nanos) {
+        this.services = services;
+        reconcileMillis = nanos / 1_000_000;
+        reconciled = true;
+    }
+
+    @Override
+    public HealthCheckResponse call() {
+        return HealthCheckResponse.named("startup")
+                .status(synced && (!leading || reconciled))
+                .withData("role", leading ? "leader" : "standby")
+                .withData("sync-ms", syncMillis)
+                .withData("initial-reconcile-ms", reconcileMillis)
+                .withData("services", services)
+                .build();
+    }
+}
@@ -0,0 +1,28 @@
+package com.partitio.vyos.controller;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What the last orphan sweep found and removed from VyOS.
+ */
+public class SweepResult {
+
+    public long timestamp = System.currentTimeMillis();
+    // Controller rules whose Service is gone, by table
+    public Map<VyOSRuleTable, Integer> orphanedRules = new EnumMap<>(VyOSRuleTable.class);
+    // Pool addresses on the WAN interface no controller rule points to
+    public int leakedAddresses;
+
+    public int orphanedRules() {
+        return orphanedRules.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Adds up what another router sweep found.
+     */
+    public void add(SweepResult other) {
+        other.orphanedRules.forEach((table, count) -> orphanedRules.merge(table, count, Integer::sum));
+        leakedAddresses += other.leakedAddresses;
+    }
+}
@@ -0,0 +1,148 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hands out rule numbers, one namespace per VyOS rule table, and public IP
+ * addresses. Numbers are taken through an {@link AllocationReservation} before
+ * anything is committed to VyOS, and given back if the commit fails.
+ *
+ * Each pool has its own lock so reservations for different tables or Services
+ * do not wait on each other, only a reload from VyOS blocks every reservation.
+ */
+public class VyOSAllocator {
+
+    private final Map<VyOSRuleTable, RuleNumberPool> ruleNumbers = new EnumMap<>(VyOSRuleTable.class);
+    private final AddressPool addressPool;
+    // Reservations not committed nor released yet, they survive a reload
+    private final Set<AllocationReservation> pendingReservations = ConcurrentHashMap.newKeySet();
+    // Read lock for allocations, write lock for reloads
+    private final ReadWriteLock reloadLock = new ReentrantReadWriteLock();
+
+    public VyOSAllocator(int ruleStart, int ruleEnd, AddressPool addressPool) {
+        for (VyOSRuleTable table : VyOSRuleTable.values()) {
+            ruleNumbers.put(table, new RuleNumberPool(ruleStart, ruleEnd, 1));
+        }
+        this.addressPool = addressPool;
+    }
+
+    public AllocationReservation reserve() {
+        AllocationReservation reservation = new AllocationReservation(this);
+        pendingReservations.add(reservation);
+        return reservation;
+    }
+
+    /**
+     * Replaces every allocation with what VyOS uses. Pending reservations are
+     * kept.
+     *
+     * @param usedRuleNumbers rule numbers found in VyOS, by table
+     * @param usedAddresses   addresses found on the WAN interface
+     */
+    public void reload(Map<VyOSRuleTable, ? extends Iterable<Integer>> usedRuleNumbers,
+            Iterable<String> usedAddresses) {
+        reloadLock.writeLock().lock();
+        try {
+            ruleNumbers.values().forEach(RuleNumberPool::clear);
+            addressPool.clear();
+            usedRuleNumbers.forEach((table, numbers) -> numbers.forEach(ruleNumbers.get(table)::markUsed));
+            usedAddresses.forEach(addressPool::markUsed);
+            for (AllocationReservation reservation : pendingReservations) {
+                reservation.ruleNumbers()
+                        .forEach((table, numbers) -> numbers.forEach(ruleNumbers.get(table)::markUsed));
+                reservation.addresses().forEach(addressPool::markUsed);
+            }
+        } finally {
+            reloadLock.writeLock().unlock();
+        }
+    }
+
+    public void release(VyOSRuleTable table, int number) {
+        reloadLock.readLock().lock();
+        try {
+            ruleNumbers.get(table).release(number);
+        } finally {
+            reloadLock.readLock().unlock();
+        }
+    }
+
+    public void releaseAddress(String address) {
+        reloadLock.readLock().lock();
+        try {
+            addressPool.release(address);
+        } finally {
+            reloadLock.readLock().unlock();
+        }
+    }
+
+    public boolean isManaged(VyOSRuleTable table, int number) {
+        return ruleNumbers.get(table).contains(number);
+    }
+
+    public boolean isPoolAddress(String address) {
+        return addressPool.contains(address);
+    }
+
+    public int free(VyOSRuleTable table) {
+        return ruleNumbers.get(table).free();
+    }
+
+    public int freeAddresses() {
+        return addressPool.free();
+    }
+
+    // The reservation records the number under the lock so that a reload never
+    // misses it
+    int allocate(AllocationReservation reservation, VyOSRuleTable table) {
+        reloadLock.readLock().lock();
+        try {
+            int number = ruleNumbers.get(table).allocate();
+            reservation.ruleNumbers().computeIfAbsent(table, t -> new ArrayList<>()).add(number);
+            return number;
+        } finally {
+            reloadLock.readLock().unlock();
+        }
+    }
+
+    // Any free address when requested is null
+    String allocateAddress(AllocationReservation reservation, String requested) {
+        reloadLock.readLock().lock();
+        try {
+            String address = requested == null ? addressPool.allocate() : addressPool.allocate(requested);
+            reservation.addresses().add(address);
+            return address;
+        } finally {
+            reloadLock.readLock().unlock();
+        }
+    }
+
+    // Hands back what the reservation took since its mark, under the lock for
+    // the same reason
+    void rollback(AllocationReservation reservation) {
+        reloadLock.readLock().lock();
+        try {
+            reservation.ruleNumbers().forEach((table, numbers) -> {
+                List<Integer> taken = numbers.subList(reservation.ruleNumberMark(table), numbers.size());
+                taken.forEach(ruleNumbers.get(table)::release);
+                taken.clear();
+            });
+            List<String> taken = reservation.addresses().subList(reservation.addressMark(),
+                    reservation.addresses().size());
+            taken.forEach(addressPool::release);
+            taken.clear();
+        } finally {
+            reloadLock.readLock().unlock();
+        }
+    }
+
+    void done(AllocationReservation reservation) {
+        pendingReservations.remove(reservation);
+    }
+}
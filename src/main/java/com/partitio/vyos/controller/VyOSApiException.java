@@ -0,0 +1,99 @@
+package com.partitio.vyos.controller;
+
+import java.net.ConnectException;
+
+import jakarta.ws.rs.WebApplicationException;
+
+/**
+ * Failure of a call to the VyOS API, classified from the HTTP status rather
+ * than from the message of the REST client exception.
+ */
+public class VyOSApiException extends RuntimeException {
+
+    private final String op;
+    // 0 when no response was received
+    private final int status;
+    private final boolean isTransient;
+    // The router surely did not process the request
+    private final boolean isUnsent;
+
+    public VyOSApiException(String op, int status, boolean isTransient, String message, Throwable cause) {
+        this(op, status, isTransient, false, message, cause);
+    }
+
+    public VyOSApiException(String op, int status, boolean isTransient, boolean isUnsent, String message,
+            Throwable cause) {
+        super(message, cause);
+        this.op = op;
+        this.status = status;
+        this.isTransient = isTransient;
+        this.isUnsent = isUnsent;
+    }
+
+    /**
+     * Classifies a REST client failure. Connection failures, timeouts, 429 and
+     * gateway errors are transient, anything else the router answered is not.
+     * A refused connection, 429 and 503 mean the request was not processed.
+     */
+    public static VyOSApiException from(String op, Throwable failure) {
+        if (failure instanceof VyOSApiException) {
+            return (VyOSApiException) failure;
+        }
+        if (failure instanceof WebApplicationException) {
+            int status = ((WebApplicationException) failure).getResponse().getStatus();
+            return new VyOSApiException(op, status, isTransientStatus(status), status == 429 || status == 503,
+                    "VyOS " + op + " failed with status " + status, failure);
+        }
+        return new VyOSApiException(op, 0, true, isConnectFailure(failure),
+                "VyOS " + op + " failed : " + failure.getMessage(), failure);
+    }
+
+    private static boolean isTransientStatus(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    private static boolean isConnectFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isTransient() {
+        return isTransient;
+    }
+
+    /**
+     * Whether the request never reached the router, so that sending it again
+     * cannot apply it twice.
+     */
+    public boolean isUnsent() {
+        return isUnsent;
+    }
+
+    /**
+     * Whether a configure may have been committed even though it failed, e.g.
+     * a read timeout or a gateway error after the router got the request.
+     */
+    public boolean mayHaveBeenApplied() {
+        return !isUnsent && (status == 0 || status == 502 || status == 504);
+    }
+
+    public boolean isBadRequest() {
+        return status == 400;
+    }
+
+    public boolean isPayloadTooLarge() {
+        return status == 413;
+    }
+}
@@ -0,0 +1,17 @@
+package com.partitio.vyos.controller;
+
+import io.fabric8.kubernetes.api.model.Namespaced;
+import io.fabric8.kubernetes.client.CustomResource;
+import io.fabric8.kubernetes.model.annotation.Group;
+import io.fabric8.kubernetes.model.annotation.Plural;
+import io.fabric8.kubernetes.model.annotation.Version;
+
+/**
+ * Allocation state of a managed Service, in its namespace and under its name.
+ * It is owned by the Service, so Kubernetes removes it with the Service.
+ */
+@Group("vyos.partitio.com")
+@Version("v1alpha1")
+@Plural("vyosbindings")
+public class VyOSBinding extends CustomResource<VyOSBindingSpec, VyOSBindingStatus> implements Namespaced {
+}
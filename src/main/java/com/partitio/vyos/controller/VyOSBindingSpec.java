@@ -0,0 +1,7 @@
+package com.partitio.vyos.controller;
+
+public class VyOSBindingSpec {
+
+    // Name of the bound Service, in the namespace of the binding
+    public String service;
+}
@@ -0,0 +1,51 @@
+package com.partitio.vyos.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * What the controller pushed to VyOS for a Service. Rule numbers are keyed by
+ * port, e.g. "53/udp".
+ */
+public class VyOSBindingStatus {
+
+    public String router;
+    public String publicIP;
+    public Map<String, Integer> firewallRules = new HashMap<>();
+    public Map<String, Integer> natRules = new HashMap<>();
+    public Map<String, Integer> hairpinNatDestinationRules = new HashMap<>();
+    public Map<String, Integer> hairpinNatSourceRules = new HashMap<>();
+    public Map<String, Integer> firewallIPv6Rules = new HashMap<>();
+
+    public static VyOSBindingStatus from(VyOSResults results) {
+        VyOSBindingStatus status = new VyOSBindingStatus();
+        status.router = results.router;
+        status.publicIP = results.publicIP;
+        status.firewallRules.putAll(results.firewallRules);
+        status.natRules.putAll(results.natRules);
+        status.hairpinNatDestinationRules.putAll(results.hairpinNatDestinationRules);
+        status.hairpinNatSourceRules.putAll(results.hairpinNatSourceRules);
+        status.firewallIPv6Rules.putAll(results.firewallIPv6Rules);
+        return status;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof VyOSBindingStatus)) {
+            return false;
+        }
+        VyOSBindingStatus status = (VyOSBindingStatus) other;
+        return Objects.equals(router, status.router) && Objects.equals(publicIP, status.publicIP)
+                && Objects.equals(firewallRules, status.firewallRules) && Objects.equals(natRules, status.natRules)
+                && Objects.equals(hairpinNatDestinationRules, status.hairpinNatDestinationRules)
+                && Objects.equals(hairpinNatSourceRules, status.hairpinNatSourceRules)
+                && Objects.equals(firewallIPv6Rules, status.firewallIPv6Rules);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(router, publicIP, firewallRules, natRules, hairpinNatDestinationRules,
+                hairpinNatSourceRules, firewallIPv6Rules);
+    }
+}
@@ -0,0 +1,111 @@
+package com.partitio.vyos.controller;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.jboss.logging.Logger;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.OwnerReferenceBuilder;
+import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.dsl.base.PatchContext;
+import io.fabric8.kubernetes.client.dsl.base.PatchType;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Reads the {@link VyOSBinding} of each Service from its own informer cache,
+ * and writes them with server-side apply so that only the fields of the
+ * controller are ever touched.
+ */
+@ApplicationScoped
+public class VyOSBindings {
+
+    private static final Logger LOG = Logger.getLogger(VyOSBindings.class);
+
+    public static final String FIELD_MANAGER = "vyos-k8s-controller";
+
+    @Inject
+    private KubernetesClient client;
+
+    private SharedIndexInformer<VyOSBinding> informer = null;
+
+    /**
+     * Starts the informer, the returned future completes once its cache is
+     * synced.
+     */
+    public synchronized CompletableFuture<Void> start(Optional<String> namespace) {
+        if (informer != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        informer = namespace
+                .map(watched -> client.resources(VyOSBinding.class).inNamespace(watched).runnableInformer(0))
+                .orElseGet(() -> client.resources(VyOSBinding.class).inAnyNamespace().runnableInformer(0));
+        SharedIndexInformer<VyOSBinding> started = informer;
+        return started.start().toCompletableFuture().thenRun(
+                () -> LOG.infof("VyOSBinding informer synced, watching=%s", started.isWatching()));
+    }
+
+    public synchronized void stop() {
+        if (informer != null) {
+            informer.stop();
+            informer = null;
+        }
+    }
+
+    /**
+     * Status of the binding of a Service, null when it has none.
+     */
+    public VyOSBindingStatus status(Service service) {
+        VyOSBinding binding = informer.getStore().getByKey(ServiceWatcher.key(service));
+        return binding == null ? null : binding.getStatus();
+    }
+
+    /**
+     * Records what was pushed for a Service. Nothing is sent when the cached
+     * binding already says so.
+     */
+    public void apply(Service service, VyOSResults results) {
+        VyOSBindingStatus status = VyOSBindingStatus.from(results);
+        if (status.equals(status(service))) {
+            return;
+        }
+        VyOSBinding binding = new VyOSBinding();
+        binding.setMetadata(new ObjectMetaBuilder()
+                .withNamespace(service.getMetadata().getNamespace())
+                .withName(service.getMetadata().getName())
+                .withOwnerReferences(new OwnerReferenceBuilder()
+                        .withApiVersion("v1")
+                        .withKind("Service")
+                        .withName(service.getMetadata().getName())
+                        .withUid(service.getMetadata().getUid())
+                        .build())
+                .build());
+        VyOSBindingSpec spec = new VyOSBindingSpec();
+        spec.service = service.getMetadata().getName();
+        binding.setSpec(spec);
+        client.resource(binding).fieldManager(FIELD_MANAGER).forceConflicts().serverSideApply();
+
+        // The status subresource is only written through its own endpoint.
+        // Ports the Service does not have anymore were applied by the same
+        // manager, leaving them out removes them
+        VyOSBinding statusBinding = new VyOSBinding();
+        statusBinding.setMetadata(new ObjectMetaBuilder()
+                .withNamespace(service.getMetadata().getNamespace())
+                .withName(service.getMetadata().getName())
+                .build());
+        statusBinding.setStatus(status);
+        client.resource(statusBinding).subresource("status").patch(new PatchContext.Builder()
+                .withPatchType(PatchType.SERVER_SIDE_APPLY)
+                .withFieldManager(FIELD_MANAGER)
+                .withForce(true)
+                .build());
+    }
+
+    public void delete(Service service) {
+        client.resources(VyOSBinding.class).inNamespace(service.getMetadata().getNamespace())
+                .withName(service.getMetadata().getName()).delete();
+    }
+}
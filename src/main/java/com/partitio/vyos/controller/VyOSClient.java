@@ -0,0 +1,115 @@
+package com.partitio.vyos.controller;
+
+import java.time.Duration;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.smallrye.mutiny.Uni;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Calls the VyOS API. Requests return a {@link Uni}, but the reconcile path
+ * blocks on it: the calling thread, a queue worker, waits for the answer and
+ * every retry, for at most {@link #getAwaitTimeout()}. Failures are turned into
+ * {@link VyOSApiException}, and transient ones are retried with exponential
+ * backoff and jitter. A configure is only retried when the router never got
+ * it, replaying a commit it already applied would fail or apply it twice.
+ */
+public class VyOSClient {
+
+    private final String router;
+    private final VyOSQuerier querier;
+    private final String vyOSApiKey;
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final double jitter;
+    private final Duration awaitTimeout;
+    private final ControllerMetrics metrics;
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param initialBackoff first retry delay, in milliseconds
+     * @param maxBackoff     longest retry delay, in milliseconds
+     * @param awaitTimeout   longest wait for a call and its retries, in
+     *                       milliseconds
+     */
+    public VyOSClient(String router, VyOSQuerier querier, String vyOSApiKey, int maxRetries, long initialBackoff,
+            long maxBackoff, double jitter, long awaitTimeout, ControllerMetrics metrics) {
+        this.router = router;
+        this.querier = querier;
+        this.vyOSApiKey = vyOSApiKey;
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.jitter = jitter;
+        this.awaitTimeout = Duration.ofMillis(awaitTimeout);
+        this.metrics = metrics;
+    }
+
+    public Duration getAwaitTimeout() {
+        return awaitTimeout;
+    }
+
+    /**
+     * Runs showConfig on the path, an empty object is returned when a sub-path
+     * does not exist. Any failure to read the whole configuration is thrown:
+     * taken as an empty router, it would free every rule number and address.
+     *
+     * @param path JSON array of path segments, [] for the whole configuration
+     */
+    public Uni<JsonNode> retrieve(String path) {
+        String data = "{\"op\": \"showConfig\", \"path\": " + path + "}";
+        boolean isRoot = path.replace(" ", "").equals("[]");
+        return call("retrieve", VyOSApiException::isTransient, () -> querier.getConfiguration(vyOSApiKey, data)
+                .map(response -> parse(response, isRoot))
+                // Status code 400 on a sub-path means there's nothing configured there yet
+                .onFailure(failure -> !isRoot && VyOSApiException.from("retrieve", failure).isBadRequest())
+                .recoverWithItem(() -> mapper.createObjectNode()));
+    }
+
+    /**
+     * Sends an op array, which VyOS applies as a single commit.
+     */
+    public Uni<Void> configure(String payload) {
+        return call("configure", failure -> failure.isTransient() && failure.isUnsent(),
+                () -> querier.configure(vyOSApiKey, payload).replaceWithVoid());
+    }
+
+    private <T> Uni<T> call(String op, Predicate<VyOSApiException> retryable, Supplier<Uni<T>> request) {
+        // Deferred so that each retry sends a new request and is timed on its own
+        return Uni.createFrom().<T>deferred(() -> {
+            long start = System.nanoTime();
+            return request.get()
+                    .onItem().invoke(() -> metrics.vyosRequest(router, op, "success", System.nanoTime() - start))
+                    .onFailure().transform(failure -> VyOSApiException.from(op, failure))
+                    .onFailure().invoke(() -> metrics.vyosRequest(router, op, "failure", System.nanoTime() - start));
+        })
+                .onFailure(failure -> retryable.test((VyOSApiException) failure))
+                .retry()
+                .withBackOff(Duration.ofMillis(initialBackoff), Duration.ofMillis(maxBackoff))
+                .withJitter(jitter)
+                .atMost(maxRetries);
+    }
+
+    private JsonNode parse(Response response, boolean isRoot) {
+        String entity = response.readEntity(String.class);
+        JsonNode data;
+        try {
+            data = mapper.readTree(entity).path("data");
+        } catch (JsonProcessingException e) {
+            throw new VyOSApiException("retrieve", response.getStatus(), false,
+                    "VyOS retrieve returned invalid JSON", e);
+        }
+        if (isRoot && !data.isObject()) {
+            throw new VyOSApiException("retrieve", response.getStatus(), false,
+                    "VyOS retrieve returned no configuration", null);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,175 @@
+package com.partitio.vyos.controller;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Collects every VyOS configuration op of a reconcile so that they can be sent
+ * to the /configure endpoint as a single op array, i.e. a single VyOS commit.
+ *
+ * <p>
+ * The ops of a rule, and the ops added between {@link #beginGroup()} and
+ * {@link #endGroup()}, form a group that is never cut when the batch has to be
+ * sent in several commits: VyOS refuses a rule committed without all of its
+ * settings, e.g. a destination NAT rule without its translation address.
+ */
+public class VyOSCommandBatch {
+
+    // Thread safe, generators are cheap to create from it
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final List<VyOSOperation> operations = new ArrayList<>();
+    // Index of the first op of the open group, -1 when none is open
+    private int groupStart = -1;
+
+    public void set(String... path) {
+        add(new VyOSOperation(VyOSOperation.Type.SET, path), false);
+    }
+
+    public void delete(String... path) {
+        add(new VyOSOperation(VyOSOperation.Type.DELETE, path), false);
+    }
+
+    /**
+     * Keeps the ops added until {@link #endGroup()}, or the next group, in the
+     * same commit, e.g. everything a Service needs.
+     */
+    public void beginGroup() {
+        groupStart = operations.size();
+    }
+
+    public void endGroup() {
+        groupStart = -1;
+    }
+
+    /**
+     * Removes the ops added since {@link #beginGroup()} and closes the group.
+     */
+    public void dropGroup() {
+        if (groupStart >= 0) {
+            operations.subList(groupStart, operations.size()).clear();
+        }
+        groupStart = -1;
+    }
+
+    private void add(VyOSOperation operation, boolean joinPrevious) {
+        if (joinPrevious || (groupStart >= 0 && operations.size() > groupStart)) {
+            operation.join();
+        }
+        operations.add(operation);
+    }
+
+    /**
+     * Adds a set op for each setting of the rule.
+     *
+     * @param rulePath path of the rule, ending with its number
+     */
+    public void setRule(String[] rulePath, VyOSRule rule) {
+        boolean first = true;
+        for (Map.Entry<String, String> setting : rule.getSettings().entrySet()) {
+            String[] key = setting.getKey().split(" ");
+            boolean hasValue = !setting.getValue().isEmpty();
+            String[] path = new String[rulePath.length + key.length + (hasValue ? 1 : 0)];
+            System.arraycopy(rulePath, 0, path, 0, rulePath.length);
+            System.arraycopy(key, 0, path, rulePath.length, key.length);
+            if (hasValue) {
+                path[path.length - 1] = setting.getValue();
+            }
+            add(new VyOSOperation(VyOSOperation.Type.SET, path), !first);
+            first = false;
+        }
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    public List<VyOSOperation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Splits the batch in op arrays holding at most maxOperations ops and at most
+     * about maxBytes characters once serialized. Ops are never reordered and
+     * groups are never cut, a group bigger than the limits is sent alone.
+     */
+    public List<List<VyOSOperation>> chunks(int maxOperations, int maxBytes) {
+        List<List<VyOSOperation>> chunks = new ArrayList<>();
+        int chunkStart = 0;
+        int chunkBytes = 2;
+        int groupStart = 0;
+        int groupBytes = 0;
+        for (int i = 0; i <= operations.size(); i++) {
+            if (i < operations.size() && operations.get(i).isJoined()) {
+                groupBytes += operations.get(i).estimatedSize() + 1;
+                continue;
+            }
+            // The group ending before op i goes in the current chunk, or
+            // starts the next one
+            int chunkSize = groupStart - chunkStart;
+            int groupSize = i - groupStart;
+            if (chunkSize > 0 && groupSize > 0
+                    && (chunkSize + groupSize > maxOperations || chunkBytes + groupBytes > maxBytes)) {
+                chunks.add(operations.subList(chunkStart, groupStart));
+                chunkStart = groupStart;
+                chunkBytes = 2;
+            }
+            chunkBytes += groupBytes;
+            groupStart = i;
+            groupBytes = i < operations.size() ? operations.get(i).estimatedSize() + 1 : 0;
+        }
+        if (chunkStart < operations.size()) {
+            chunks.add(operations.subList(chunkStart, operations.size()));
+        }
+        return chunks;
+    }
+
+    /**
+     * Splits an op array in two at the group boundary closest to its middle,
+     * used when the router refuses a payload as too large.
+     *
+     * @return the two halves, or the op array alone when it is a single group
+     */
+    public static List<List<VyOSOperation>> split(List<VyOSOperation> chunk) {
+        int middle = chunk.size() / 2;
+        int cut = -1;
+        for (int i = 1; i < chunk.size(); i++) {
+            if (!chunk.get(i).isJoined() && (cut < 0 || Math.abs(i - middle) < Math.abs(cut - middle))) {
+                cut = i;
+            }
+        }
+        if (cut < 0) {
+            return List.of(chunk);
+        }
+        return List.of(chunk.subList(0, cut), chunk.subList(cut, chunk.size()));
+    }
+
+    /**
+     * Streams the ops as the JSON array expected by /configure.
+     */
+    public static String toJson(List<VyOSOperation> chunk) throws IOException {
+        int estimatedSize = 2;
+        for (VyOSOperation operation : chunk) {
+            estimatedSize += operation.estimatedSize() + 1;
+        }
+        StringWriter writer = new StringWriter(estimatedSize);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            generator.writeStartArray();
+            for (VyOSOperation operation : chunk) {
+                operation.writeTo(generator);
+            }
+            generator.writeEndArray();
+        }
+        return writer.toString();
+    }
+}
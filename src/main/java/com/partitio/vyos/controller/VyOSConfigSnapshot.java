@@ -0,0 +1,237 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Firewall rules of both rulesets, NAT rules and WAN addresses read from VyOS
+ * in a single showConfig.
+ */
+public class VyOSConfigSnapshot {
+
+    private final Map<VyOSRuleTable, Map<Integer, VyOSRule>> rules = new EnumMap<>(VyOSRuleTable.class);
+    private final List<String> addresses = new ArrayList<>();
+    // Controller rules by Service name
+    private final Map<String, List<VyOSRule>> serviceRules = new HashMap<>();
+    private final Map<VyOSRule, RuleTag> tags = new HashMap<>();
+    // Rule group mode, by group name
+    private final Map<String, VyOSRule> groupRules = new HashMap<>();
+    private final Map<String, Set<String>> addressGroups = new HashMap<>();
+    private final Map<String, Set<String>> portGroups = new HashMap<>();
+
+    // Whole configuration as read, to undo a partially applied batch
+    private final JsonNode config;
+    private final String firewallRulesetName;
+    private final String firewallIPv6RulesetName;
+    private final String wanInterface;
+
+    public VyOSConfigSnapshot(JsonNode config, String firewallRulesetName, String wanInterface) {
+        this(config, firewallRulesetName, null, wanInterface);
+    }
+
+    /**
+     * @param firewallIPv6RulesetName ipv6-name ruleset, null when not read
+     */
+    public VyOSConfigSnapshot(JsonNode config, String firewallRulesetName, String firewallIPv6RulesetName,
+            String wanInterface) {
+        this.config = config;
+        this.firewallRulesetName = firewallRulesetName;
+        this.firewallIPv6RulesetName = firewallIPv6RulesetName;
+        this.wanInterface = wanInterface;
+        readRules(VyOSRuleTable.FIREWALL, config.path("firewall").path("name").path(firewallRulesetName));
+        if (firewallIPv6RulesetName != null) {
+            readRules(VyOSRuleTable.FIREWALL_IPV6,
+                    config.path("firewall").path("ipv6-name").path(firewallIPv6RulesetName));
+        }
+        readRules(VyOSRuleTable.DESTINATION_NAT, config.path("nat").path("destination"));
+        readRules(VyOSRuleTable.SOURCE_NAT, config.path("nat").path("source"));
+        readValues(config.path("interfaces").path("ethernet").path(wanInterface).path("address"), addresses);
+        readGroups(config.path("firewall").path("group").path("address-group"), "address", addressGroups);
+        readGroups(config.path("firewall").path("group").path("port-group"), "port", portGroups);
+    }
+
+    // A leaf holding several values is an array, a single value is a string
+    private static void readValues(JsonNode node, Collection<String> values) {
+        if (node.isArray()) {
+            node.forEach(value -> values.add(value.asText()));
+        } else if (node.isTextual()) {
+            values.add(node.asText());
+        }
+    }
+
+    private static void readGroups(JsonNode tree, String leaf, Map<String, Set<String>> groups) {
+        tree.fields().forEachRemaining(field -> {
+            if (field.getKey().startsWith(FirewallGroups.GROUP_PREFIX)) {
+                Set<String> values = new TreeSet<>();
+                readValues(field.getValue().path(leaf), values);
+                groups.put(field.getKey(), values);
+            }
+        });
+    }
+
+    private void readRules(VyOSRuleTable table, JsonNode tree) {
+        Map<Integer, VyOSRule> tableRules = new HashMap<>();
+        tree.path("rule").fields().forEachRemaining(field -> {
+            VyOSRule rule = VyOSRule.fromConfig(table, Integer.parseInt(field.getKey()), field.getValue());
+            tableRules.put(rule.getNumber(), rule);
+            String description = rule.getDescription();
+            if (table == VyOSRuleTable.FIREWALL && description != null
+                    && description.startsWith(FirewallGroups.RULE_PREFIX + " ")) {
+                groupRules.put(description.substring(FirewallGroups.RULE_PREFIX.length() + 1), rule);
+            }
+            RuleTag tag = RuleTag.parse(description);
+            if (tag != null && tag.getKind().getTable() == table) {
+                tags.put(rule, tag);
+                serviceRules.computeIfAbsent(tag.getServiceName(), name -> new ArrayList<>()).add(rule);
+            }
+        });
+        rules.put(table, tableRules);
+    }
+
+    public Map<Integer, VyOSRule> rules(VyOSRuleTable table) {
+        return rules.getOrDefault(table, Collections.emptyMap());
+    }
+
+    /**
+     * Addresses of the WAN interface, in CIDR notation.
+     */
+    public List<String> addresses() {
+        return addresses;
+    }
+
+    /**
+     * @return the WAN interface entry, in CIDR notation, holding this IP
+     */
+    public Optional<String> address(String ip) {
+        return addresses.stream().filter(address -> address.equals(ip) || address.startsWith(ip + "/"))
+                .findFirst();
+    }
+
+    /**
+     * Rules created by the controller, by Service name.
+     */
+    public Map<String, List<VyOSRule>> serviceRules() {
+        return serviceRules;
+    }
+
+    public List<VyOSRule> serviceRules(String serviceName) {
+        return serviceRules.getOrDefault(serviceName, Collections.emptyList());
+    }
+
+    public RuleTag tag(VyOSRule rule) {
+        return tags.get(rule);
+    }
+
+    public JsonNode config() {
+        return config;
+    }
+
+    /**
+     * Snapshot of the configuration once the ops are committed, without
+     * reading VyOS again. A set adds its last segment to the values of a
+     * leaf, as every set of the controller does. Ops already reflected in the
+     * configuration change nothing.
+     */
+    public VyOSConfigSnapshot after(List<VyOSOperation> operations) {
+        ObjectNode updated = config.isObject() ? ((ObjectNode) config).deepCopy()
+                : JsonNodeFactory.instance.objectNode();
+        for (VyOSOperation operation : operations) {
+            String[] path = operation.getPath();
+            if (path.length < 2) {
+                continue;
+            }
+            if (operation.getType() == VyOSOperation.Type.SET) {
+                addValue(updated, path);
+            } else {
+                remove(updated, path);
+            }
+        }
+        return new VyOSConfigSnapshot(updated, firewallRulesetName, firewallIPv6RulesetName, wanInterface);
+    }
+
+    private static void addValue(ObjectNode config, String[] path) {
+        ObjectNode node = config;
+        for (int i = 0; i < path.length - 2; i++) {
+            JsonNode child = node.path(path[i]);
+            node = child.isObject() ? (ObjectNode) child : node.putObject(path[i]);
+        }
+        String leaf = path[path.length - 2];
+        String value = path[path.length - 1];
+        JsonNode values = node.path(leaf);
+        if (values.isArray()) {
+            for (JsonNode current : values) {
+                if (current.asText().equals(value)) {
+                    return;
+                }
+            }
+            ((ArrayNode) values).add(value);
+        } else if (values.isTextual() && !values.asText().equals(value)) {
+            node.putArray(leaf).add(values.asText()).add(value);
+        } else {
+            node.put(leaf, value);
+        }
+    }
+
+    private static void remove(ObjectNode config, String[] path) {
+        JsonNode parent = config;
+        JsonNode node = config;
+        for (int i = 0; i < path.length - 1; i++) {
+            parent = node;
+            node = node.path(path[i]);
+        }
+        String last = path[path.length - 1];
+        if (node.isObject()) {
+            ((ObjectNode) node).remove(last);
+            return;
+        }
+        // The last segment is one of the values of a leaf
+        String leaf = path[path.length - 2];
+        if (node.isArray()) {
+            ArrayNode values = (ArrayNode) node;
+            for (int i = values.size() - 1; i >= 0; i--) {
+                if (values.get(i).asText().equals(last)) {
+                    values.remove(i);
+                }
+            }
+            if (values.isEmpty()) {
+                ((ObjectNode) parent).remove(leaf);
+            }
+        } else if (node.isTextual() && node.asText().equals(last)) {
+            ((ObjectNode) parent).remove(leaf);
+        }
+    }
+
+    /**
+     * Firewall rules of the rule group mode, by group name.
+     */
+    public Map<String, VyOSRule> groupRules() {
+        return groupRules;
+    }
+
+    /**
+     * Address groups created by the controller, by name.
+     */
+    public Map<String, Set<String>> addressGroups() {
+        return addressGroups;
+    }
+
+    /**
+     * Port groups created by the controller, by name.
+     */
+    public Map<String, Set<String>> portGroups() {
+        return portGroups;
+    }
+}
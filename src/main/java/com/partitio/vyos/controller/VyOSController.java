@@ -1,338 +1,306 @@
 package com.partitio.vyos.controller;
 
-import java.text.MessageFormat;
+import java.net.URI;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
-import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
-import org.jboss.resteasy.reactive.ClientWebApplicationException;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.rest.client.RestClientBuilder;
+import org.jboss.logging.Logger;
+import org.jboss.resteasy.reactive.client.api.QuarkusRestClientProperties;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-
-import io.fabric8.kubernetes.api.model.ServicePort;
-import io.quarkus.arc.Lock;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
-import jakarta.ws.rs.core.Response;
 
+/**
+ * Spreads Services over the configured VyOS routers. A Service goes to the
+ * router named by its router annotation, or else to the router picked by
+ * rendezvous hashing of its namespace/name, which only moves the Services of
+ * a router that is added or removed.
+ *
+ * <p>
+ * Without vyos.routers, a single router named "default" is configured from the
+ * vyos.* properties. Otherwise each listed router reads its settings from
+ * vyos.router.&lt;name&gt;.*, falling back to vyos.* for anything it does not
+ * set.
+ */
 @Singleton
 public class VyOSController {
 
-    @ConfigProperty(name = "vyos.api-key")
-    private String vyOSApiKey;
-
-    @ConfigProperty(name = "vyos.rule-start", defaultValue = "200")
-    private Integer ruleStart;
-
-    @ConfigProperty(name = "vyos.rule-end", defaultValue = "400")
-    private Integer ruleEnd;
-
-    @ConfigProperty(name = "vyos.firewall-ruleset-name", defaultValue = "OUTSIDE-IN")
-    private String firewallRulesetName;
-
-    @ConfigProperty(name = "vyos.wan-interface", defaultValue = "eth0")
-    private String wanInterface;
-
-    @ConfigProperty(name = "vyos.lan-interface", defaultValue = "eth1")
-    private String lanInterface;
-
-    @ConfigProperty(name = "vyos.available-ip-range")
-    private String ipRange;
+    private static final Logger LOG = Logger.getLogger(VyOSController.class);
 
-    @ConfigProperty(name = "vyos.public-ip-netmask", defaultValue = "28")
-    private Integer netmask;
+    public static final String DEFAULT_ROUTER = "default";
 
-    @ConfigProperty(name = "vyos.private-network")
-    private String privateNetwork;
+    @Inject
+    private Config config;
 
     @Inject
-    @RestClient
-    private VyOSQuerier querier;
+    private ControllerMetrics metrics;
 
-    private ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, VyOSRouter> routers = new LinkedHashMap<>();
 
-    private List<String> allConfigurableIPs;
-    private List<Integer> allPossibleRuleNumbers;
-    private List<Integer> allPossibleHairpinRuleNumbers;
+    // Runs full reconciles, sweeps and refreshes of the routers in parallel
+    private ExecutorService executor;
 
-    // 0 : rulesetname, 1 : rulenumber, 2 : IP address, 3 : port, 4 : name
-    private static final String createFirewallRuleCommand = "['{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"action\",\"accept\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"destination\",\"address\",\"{2}\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"destination\",\"port\",\"{3,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\",\"description\",\"Auto Kube Firewall rule for {4}, IP : {2}, port : {3,number,#}\"]'}']";
-    // 0 : rulenumber, 1 : port, 2 : destinationaddress, 3 : translationaddress, 4 :
-    // inbound-interface, 5 : service name
-    private static final String createDestinationNatRuleCommand = "['{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"address\",\"{2}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"address\",\"{3}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"inbound-interface\",\"{4}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"description\",\"Auto Kube Nat rule for {5}, IP : {3}, port : {1,number,#}, publicIP : {2}\"]'}']";
-    // 0 : rulenumber, 1 : port, 2 : destinationaddress, 3 : translationaddress, 4 :
-    // inbound-interface, 5 : service name
-    private static final String createHairpinDestinationNatRuleCommand = "['{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"destination\",\"address\",\"{2}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"address\",\"{3}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"translation\",\"port\",\"{1,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"inbound-interface\",\"{4}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\",\"description\",\"Auto Kube Hairpin Nat rule for {5}, IP : {3}, port : {1,number,#}, publicIP : {2}\"]'}']";
-    // 0 : rulenumber, 1 : privatenetwork (192.168.199.0/24), 2 : port, 3 :
-    // destinationaddress, 4 : outbound-interface, 5 : service name
-    private static final String createHairpinSourceNatRuleCommand = "['{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"source\",\"address\",\"{1}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"destination\",\"port\",\"{2,number,#}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"destination\",\"address\",\"{3}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"translation\",\"address\",\"masquerade\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"outbound-interface\",\"{4}\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"protocol\",\"tcp\"]'}','{'\"op\":\"set\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\",\"description\",\"Auto Kube Hairpin Nat Source rule for {5}, IP : {3}, port : {2,number,#}, private network : {1}\"]'}']";
-    // 0 : interface, 1 : address
-    private static final String addIPAddresssCommand = "'{'\"op\": \"set\", \"path\": [\"interfaces\", \"ethernet\", \"{0}\", \"address\", \"{1}\"]'}'";
-    private static final String deleteIPAddresssCommand = "'{'\"op\": \"delete\", \"path\": [\"interfaces\", \"ethernet\", \"{0}\", \"address\", \"{1}/{2,number,#}\"]'}'";
-    private static final String deleteFirewallRuleCommand = "['{'\"op\":\"delete\",\"path\":[\"firewall\",\"name\",\"{0}\",\"rule\",\"{1,number,#}\"]'}']";
-    private static final String deleteSourceNatRuleCommand = "['{'\"op\":\"delete\",\"path\":[\"nat\",\"source\",\"rule\",\"{0,number,#}\"]'}']";
-    private static final String deleteDestinationNatRuleCommand = "['{'\"op\":\"delete\",\"path\":[\"nat\",\"destination\",\"rule\",\"{0,number,#}\"]'}']";
+    @FunctionalInterface
+    private interface RouterTask<T> {
+        T run(VyOSRouter router) throws Exception;
+    }
 
     @PostConstruct
     private void postConstruct() {
-        // Build all IP list from available ip range
-        this.allConfigurableIPs = buildAvailableIPs();
-        this.allPossibleRuleNumbers = buildPossibleRuleNumbers(false);
-        this.allPossibleHairpinRuleNumbers = buildPossibleRuleNumbers(true);
+        List<String> names = config.getOptionalValues("vyos.routers", String.class).orElse(List.of());
+        if (names.isEmpty()) {
+            routers.put(DEFAULT_ROUTER, buildRouter(DEFAULT_ROUTER, null));
+        } else {
+            for (String name : names) {
+                routers.put(name.trim(), buildRouter(name.trim(), "vyos.router." + name.trim() + "."));
+            }
+        }
+        executor = Executors.newFixedThreadPool(routers.size(), runnable -> {
+            Thread thread = new Thread(runnable, "vyos-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOG.infof("VyOS routers configured, routers=%s", routers.keySet());
     }
 
-    @Lock
-    public VyOSResults createRules(String ip, String name, List<ServicePort> ports) throws Exception {
-        VyOSResults results = new VyOSResults();
-        // We have to create a set of rules for each port
-        // First we have to check if an IP is still available on VyOS to redirect the
-        // traffic
-        String publicIPAddressCIDR = getNextAvailableAddress();
-        String publicIPAddress = publicIPAddressCIDR.split("/", 0)[0];
-        results.publicIP = publicIPAddress;
-        // Next, for each port...
-        // we have to get the existing rules to make sure of the number
-        for (ServicePort port : ports) {
-            Integer nextFirewallRuleNumber = getNextAvailableFirewallRuleNumber(allPossibleRuleNumbers);
-            Integer nextDestinationNatRuleNumber = getNextAvailableDestinationNatRuleNumber(allPossibleRuleNumbers);
-            Integer nextHairpinSourceNatRuleNumber = getNextAvailableSourceNatRuleNumber(allPossibleHairpinRuleNumbers);
-            Integer nextHairpinDestinationNatRuleNumber = getNextAvailableSourceNatRuleNumber(
-                    allPossibleHairpinRuleNumbers);
+    @PreDestroy
+    void preDestroy() {
+        executor.shutdownNow();
+    }
 
-            // And once we have them, create the rules HERE
-            // Can't create them elsewhere, the numbers won't be OK...
-            createFirewallRule(firewallRulesetName, port.getPort(), ip,
-                    nextFirewallRuleNumber, name);
-            createDestinationNatRule(publicIPAddress, ip, port.getPort(), wanInterface,
-                    nextDestinationNatRuleNumber, name);
-            createHairpinDestinationNatRule(publicIPAddress, ip, port.getPort(),
-                    lanInterface, nextHairpinDestinationNatRuleNumber, name);
-            createHairpinSourceNatRule(ip, port.getPort(), lanInterface, privateNetwork, nextHairpinSourceNatRuleNumber,
-                    name);
-            // Once rules are created, update the results
-            results.firewallRules.put(port.getPort(), nextFirewallRuleNumber);
-            results.natRules.put(port.getPort(), nextDestinationNatRuleNumber);
-            results.hairpinNatDestinationRules.put(port.getPort(), nextHairpinDestinationNatRuleNumber);
-            results.hairpinNatSourceRules.put(port.getPort(), nextHairpinSourceNatRuleNumber);
+    private VyOSRouter buildRouter(String name, String prefix) {
+        VyOSRouterSettings settings = new VyOSRouterSettings();
+        settings.name = name;
+        settings.apiKey = setting(prefix, "api-key", String.class, null);
+        settings.ruleStart = setting(prefix, "rule-start", Integer.class, 200);
+        settings.ruleEnd = setting(prefix, "rule-end", Integer.class, 400);
+        settings.firewallRulesetName = setting(prefix, "firewall-ruleset-name", String.class, "OUTSIDE-IN");
+        settings.firewallIPv6RulesetName = setting(prefix, "firewall-ipv6-ruleset-name", String.class,
+                "OUTSIDE-IN-V6");
+        settings.wanInterface = setting(prefix, "wan-interface", String.class, "eth0");
+        settings.lanInterface = setting(prefix, "lan-interface", String.class, "eth1");
+        settings.ipRange = setting(prefix, "available-ip-range", String.class, null);
+        settings.netmask = setting(prefix, "public-ip-netmask", Integer.class, 28);
+        settings.privateNetwork = setting(prefix, "private-network", String.class, null);
+        settings.batchMaxOperations = setting(prefix, "batch.max-operations", Integer.class, 1000);
+        settings.batchMaxBytes = setting(prefix, "batch.max-bytes", Integer.class, 262144);
+        settings.ipSharing = setting(prefix, "ip-sharing", Boolean.class, false);
+        settings.ruleGroups = setting(prefix, "rule-groups", Boolean.class, false);
+        if (settings.apiKey == null || settings.ipRange == null || settings.privateNetwork == null) {
+            throw new IllegalStateException("VyOS router " + name
+                    + " needs an api-key, an available-ip-range and a private-network");
         }
-        // Then create the IP address
-        createIPAddress(publicIPAddressCIDR, wanInterface);
-        // Then finish filling the results object and return it
-        results.publicIP = publicIPAddress;
-        return results;
+
+        // Connection settings are shared by every router
+        String url = prefix == null ? config.getValue("quarkus.rest-client.vyos.url", String.class)
+                : config.getValue(prefix + "url", String.class);
+        VyOSQuerier querier = RestClientBuilder.newBuilder()
+                .baseUri(URI.create(url))
+                .connectTimeout(clientSetting("connect-timeout", Long.class, 5000L), TimeUnit.MILLISECONDS)
+                .readTimeout(clientSetting("read-timeout", Long.class, 30000L), TimeUnit.MILLISECONDS)
+                .property(QuarkusRestClientProperties.CONNECTION_POOL_SIZE,
+                        clientSetting("connection-pool-size", Integer.class, 20))
+                .property(QuarkusRestClientProperties.KEEP_ALIVE_ENABLED,
+                        clientSetting("keep-alive-enabled", Boolean.class, true))
+                .property(QuarkusRestClientProperties.HTTP2, clientSetting("http2", Boolean.class, false))
+                .build(VyOSQuerier.class);
+        VyOSClient client = new VyOSClient(name, querier, settings.apiKey,
+                config.getOptionalValue("vyos.client.retry.max-retries", Integer.class).orElse(3),
+                config.getOptionalValue("vyos.client.retry.initial-backoff", Long.class).orElse(200L),
+                config.getOptionalValue("vyos.client.retry.max-backoff", Long.class).orElse(5000L),
+                config.getOptionalValue("vyos.client.retry.jitter", Double.class).orElse(0.5),
+                config.getOptionalValue("vyos.client.await-timeout", Long.class).orElse(120000L), metrics);
+        return new VyOSRouter(settings, client, metrics);
     }
 
-    private void createHairpinSourceNatRule(String ip, Integer port,
-            String outboundInterface, String sourceNetwork, Integer ruleNumber, String serviceName) {
-        String command = MessageFormat.format(createHairpinSourceNatRuleCommand, ruleNumber, sourceNetwork, port, ip,
-                outboundInterface, serviceName);
-        System.out.println(command);
-        querier.configure(vyOSApiKey, command);
+    private <T> T setting(String prefix, String name, Class<T> type, T defaultValue) {
+        return (prefix == null ? Optional.<T>empty() : config.getOptionalValue(prefix + name, type))
+                .or(() -> config.getOptionalValue("vyos." + name, type))
+                .orElse(defaultValue);
     }
 
-    private void createHairpinDestinationNatRule(String destinationAddress,
-            String translationAddress,
-            Integer port, String inboundInterface, Integer ruleNumber, String serviceName) {
-        String command = MessageFormat.format(createHairpinDestinationNatRuleCommand, ruleNumber, port, destinationAddress,
-                translationAddress, inboundInterface, serviceName);
-        System.out.println(command);
-        querier.configure(vyOSApiKey, command);
+    private <T> T clientSetting(String name, Class<T> type, T defaultValue) {
+        return config.getOptionalValue("quarkus.rest-client.vyos." + name, type).orElse(defaultValue);
     }
 
-    private void createDestinationNatRule(String destinationAddress, String translationAddress,
-            Integer port, String inboundInterface, Integer natRuleNumber, String serviceName) {
-        String command = MessageFormat.format(createDestinationNatRuleCommand, natRuleNumber, port, destinationAddress,
-                translationAddress, inboundInterface, serviceName);
-        System.out.println(command);
-        querier.configure(vyOSApiKey, command);
+    public Set<String> routerNames() {
+        return routers.keySet();
     }
 
-    private void createFirewallRule(String firewallRulesetName, Integer port,
-            String privateIP, Integer firewallRuleNumber, String serviceName) {
-        String command = MessageFormat.format(createFirewallRuleCommand, firewallRulesetName, firewallRuleNumber,
-                privateIP, port, serviceName);
-        System.out.println(command);
-        querier.configure(vyOSApiKey, command);
+    /**
+     * Name of the router a Service goes to.
+     *
+     * @param pinnedRouter router named by the Service annotation, may be null
+     */
+    public String routerFor(String serviceName, String pinnedRouter) {
+        if (pinnedRouter != null) {
+            if (!routers.containsKey(pinnedRouter)) {
+                throw new IllegalArgumentException("Service " + serviceName + " asks for unknown VyOS router "
+                        + pinnedRouter);
+            }
+            return pinnedRouter;
+        }
+        String chosen = null;
+        long highestWeight = Long.MIN_VALUE;
+        for (String router : routers.keySet()) {
+            long weight = mix((router + "/" + serviceName).hashCode());
+            if (chosen == null || weight > highestWeight) {
+                chosen = router;
+                highestWeight = weight;
+            }
+        }
+        return chosen;
     }
 
-    private void createIPAddress(String publicIPAddress, String wanInterface) {
-        String command = MessageFormat.format(addIPAddresssCommand, wanInterface, publicIPAddress);
-        System.out.println(command);
-        querier.configure(vyOSApiKey, command);
+    // Spreads String hash codes that only differ in their last characters
+    private static long mix(int hash) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return h ^ (h >>> 29);
     }
 
-    private Integer getNextAvailableFirewallRuleNumber(List<Integer> allPossibleNumbers)
-            throws JsonMappingException, JsonProcessingException {
-        Response response;
-        try {
-            response = querier.getConfiguration(vyOSApiKey,
-                    "{\"op\": \"showConfig\", \"path\": [\"firewall\", \"name\", \"" + firewallRulesetName
-                            + "\"]}");
-        } catch (ClientWebApplicationException e) {
-            // Status code 400 here means there's no rule in the configuration yet
-            if (e.getMessage().startsWith("Received: 'Bad Request, status code 400'", 0)) {
-                return allPossibleNumbers.stream().findFirst().orElseThrow();
-            }
-            throw e;
-        }
-        String entity = response.readEntity(String.class);
-        JsonNode rules = mapper.readTree(entity).get("data").get("rule");
-        List<Integer> keys = new ArrayList<>();
-        Iterator<String> iterator = rules.fieldNames();
-        iterator.forEachRemaining(e -> keys.add(Integer.parseInt(e)));
-        return allPossibleNumbers.stream().filter(number -> !keys.contains(number)).findFirst().orElseThrow();
+    private VyOSRouter router(DesiredService service) {
+        return routers.get(routerFor(service.getName(), service.getRouter()));
     }
 
-    private Integer getNextAvailableDestinationNatRuleNumber(List<Integer> allPossibleNumbers)
-            throws JsonMappingException, JsonProcessingException {
-        Response response;
-        try {
-            response = querier.getConfiguration(vyOSApiKey,
-                    "{\"op\": \"showConfig\", \"path\": [\"nat\", \"destination\"]}");
-        } catch (ClientWebApplicationException e) {
-            // Status code 400 here means there's no rule in the configuration yet
-            if (e.getMessage().startsWith("Received: 'Bad Request, status code 400'", 0)) {
-                return allPossibleNumbers.stream().findFirst().orElseThrow();
-            }
-            throw e;
-        }
-        String entity = response.readEntity(String.class);
-        if (response.getStatus() == 400) {
-            String errorString = mapper.readTree(entity).get("data").asText();
-            System.out.println(errorString);
-        }
-        JsonNode rules = mapper.readTree(entity).get("data").get("rule");
-        List<Integer> keys = new ArrayList<>();
-        Iterator<String> iterator = rules.fieldNames();
-        iterator.forEachRemaining(e -> keys.add(Integer.parseInt(e)));
-        return allPossibleNumbers.stream().filter(number -> !keys.contains(number)).findFirst().orElseThrow();
+    /**
+     * Brings the rules of one Service in line with what it should expose, on
+     * the router it is assigned to.
+     */
+    public VyOSResults reconcileService(DesiredService service) throws Exception {
+        VyOSRouter router = router(service);
+        VyOSResults results = router.reconcileService(service);
+        results.router = router.getName();
+        return results;
     }
 
-    private Integer getNextAvailableSourceNatRuleNumber(List<Integer> allPossibleNumbers)
-            throws JsonMappingException, JsonProcessingException {
-        Response response;
-        try {
-            response = querier.getConfiguration(vyOSApiKey,
-                    "{\"op\": \"showConfig\", \"path\": [\"nat\", \"source\"]}");
-        } catch (ClientWebApplicationException e) {
-            // Status code 400 here means there's no rule in the configuration yet
-            if (e.getMessage().startsWith("Received: 'Bad Request, status code 400'", 0)) {
-                return allPossibleNumbers.stream().findFirst().orElseThrow();
-            }
-            throw e;
-        }
-        String entity = response.readEntity(String.class);
-        if (response.getStatus() == 400) {
-            String errorString = mapper.readTree(entity).get("data").asText();
-            System.out.println(errorString);
-        }
-        JsonNode rules = mapper.readTree(entity).get("data").get("rule");
-        List<Integer> keys = new ArrayList<>();
-        Iterator<String> iterator = rules.fieldNames();
-        iterator.forEachRemaining(e -> keys.add(Integer.parseInt(e)));
-        return allPossibleNumbers.stream().filter(number -> !keys.contains(number)).findFirst().orElseThrow();
+    /**
+     * Removes the rules of a Service from the router it is assigned to.
+     *
+     * @param router router named by the Service annotation, may be null
+     */
+    public void deleteServiceRules(String name, String router) throws Exception {
+        reconcileService(DesiredService.absent(name, router));
+    }
+
+    /**
+     * Reconciles every Service against a single read of each router, routers
+     * in parallel. A router also drops the rules of Services that are not
+     * assigned to it anymore.
+     *
+     * @param removable whether the rules of a Service missing from the desired
+     *                  state belong to this controller
+     * @return the result of each desired Service
+     */
+    public Map<String, VyOSResults> reconcileAll(Collection<DesiredService> services, Predicate<String> removable)
+            throws Exception {
+        Map<String, List<DesiredService>> byRouter = groupByRouter(services);
+        Map<String, Map<String, VyOSResults>> routerResults = onEachRouter(
+                router -> router.reconcileAll(byRouter.get(router.getName()), removable));
+        Map<String, VyOSResults> results = new HashMap<>();
+        routerResults.forEach((router, serviceResults) -> serviceResults.values()
+                .forEach(result -> result.router = router));
+        routerResults.values().forEach(results::putAll);
+        return results;
     }
 
-    private String getNextAvailableAddress() throws JsonMappingException, JsonProcessingException {
-        Response response = querier.getConfiguration(vyOSApiKey,
-                "{\"op\": \"showConfig\", \"path\": [\"interfaces\", \"ethernet\", \"" + wanInterface
-                        + "\", \"address\"]}");
-        String entity = response.readEntity(String.class);
-        JsonNode actualResponse = mapper.readTree(entity);
-        ArrayNode addressNodes = (ArrayNode) actualResponse.get("data").get("address");
-        List<String> addresses = new ArrayList<>(addressNodes.size());
-        addressNodes.forEach(node -> addresses.add(node.asText()));
-        // Now we have the addresses we need to compare with the available IPs and
-        // retrieve the first available
-        return allConfigurableIPs.stream().map(ip -> ip + "/" + netmask)
-                .filter(ip -> !addresses.contains(ip))
-                .findFirst()
-                .orElseThrow();
+    /**
+     * Sweeps every router, each one keeping the rules of the live Services
+     * assigned to it.
+     */
+    public SweepResult sweepOrphans(Collection<DesiredService> liveServices, Predicate<String> removable)
+            throws Exception {
+        Map<String, List<DesiredService>> byRouter = groupByRouter(liveServices);
+        Map<String, SweepResult> routerResults = onEachRouter(router -> router.sweepOrphans(byRouter
+                .get(router.getName()).stream().map(DesiredService::getName).collect(Collectors.toSet()),
+                removable));
+        SweepResult result = new SweepResult();
+        routerResults.values().forEach(result::add);
+        return result;
     }
 
-    private List<String> buildAvailableIPs() {
-        // Dirty work
-        // First we get beginning and ending
-        String firstIP = this.ipRange.split("-")[0];
-        String lastIP = this.ipRange.split("-")[1];
-        String[] firstIPStrings = firstIP.split("\\.");
-        String[] lastIPStrings = lastIP.split("\\.");
-        // then we compare if the first 3 bytes are the same
-        boolean firstByte = firstIPStrings[0].equals(lastIPStrings[0]);
-        boolean secondByte = firstIPStrings[1].equals(lastIPStrings[1]);
-        boolean thirdByte = firstIPStrings[2].equals(lastIPStrings[2]);
+    /**
+     * Rebuilds the allocation pools of every router from its configuration.
+     */
+    public void refreshAllocations() throws Exception {
+        onEachRouter(router -> {
+            router.refreshAllocations();
+            return null;
+        });
+    }
 
-        // If any of these booleans is false, throw an exception
-        if (!firstByte || !secondByte || !thirdByte) {
-            throw new RuntimeException("IP Range is too big, check vyos.available-ip-range");
+    /**
+     * Checks the rule numbers claimed by Services against each router.
+     *
+     * @param claims rule numbers claimed by each Service, by router
+     * @return the number of issues found
+     */
+    public int checkAllocations(Map<String, Map<String, Map<VyOSRuleTable, Set<Integer>>>> claims) {
+        int issues = 0;
+        for (VyOSRouter router : routers.values()) {
+            issues += router.checkAllocations(claims.getOrDefault(router.getName(), Map.of()));
         }
-        // Now we can build the list.
-        String firstByteString = firstIPStrings[0];
-        String secondByteString = firstIPStrings[1];
-        String thirdByteString = firstIPStrings[2];
-
-        Integer fourthByteBeginning = Integer.parseUnsignedInt(firstIPStrings[3]);
-        Integer fourthByteEnd = Integer.parseUnsignedInt(lastIPStrings[3]);
-        List<Integer> range = IntStream.rangeClosed(fourthByteBeginning, fourthByteEnd)
-                .boxed().collect(Collectors.toList());
-        // Now we have the list we have to put all of them together
-        return range.stream().map(t -> t.toString()).map(s -> {
-            return firstByteString + "." + secondByteString + "." + thirdByteString + "." + s;
-        }).collect(Collectors.toList());
+        return issues;
     }
 
-    private List<Integer> buildPossibleRuleNumbers(boolean odd) {
-        List<Integer> availableRules = new ArrayList<>();
-        if (odd) {
-            for (int i = ruleStart; i <= ruleEnd; i++) {
-                if (i % 2 != 0) {
-                    availableRules.add(i);
-                }
-            }
-        } else {
-            for (int i = ruleStart; i <= ruleEnd; i++) {
-                if (i % 2 == 0) {
-                    availableRules.add(i);
-                }
+    private Map<String, List<DesiredService>> groupByRouter(Collection<DesiredService> services) {
+        Map<String, List<DesiredService>> byRouter = new HashMap<>();
+        routers.keySet().forEach(router -> byRouter.put(router, new ArrayList<>()));
+        for (DesiredService service : services) {
+            try {
+                byRouter.get(routerFor(service.getName(), service.getRouter())).add(service);
+            } catch (IllegalArgumentException e) {
+                LOG.warnf("%s, ignoring it", e.getMessage());
             }
         }
-        return availableRules;
+        return byRouter;
     }
 
-    public void deleteRules(String iPaddress, Map<String, Integer> firewallRules,
-            Map<String, Integer> destinationNatRules, Map<String, Integer> hairpinDestinationNatRules,
-            Map<String, Integer> hairpinSourceNatRules) {
-        // Delete IP
-        String deleteIPCommand = MessageFormat.format(deleteIPAddresssCommand, wanInterface, iPaddress, netmask);
-        System.out.println(deleteIPCommand);
-        querier.configure(vyOSApiKey, deleteIPCommand);
-        // Delete firewall
-        firewallRules.forEach((key, value) -> {
-            String deleteFirewallCommand = MessageFormat.format(deleteFirewallRuleCommand, firewallRulesetName, value);
-            querier.configure(vyOSApiKey, deleteFirewallCommand);
-        });
-        destinationNatRules.forEach((key, value) -> {
-            String deleteDestinationNatCommand = MessageFormat.format(deleteDestinationNatRuleCommand, value);
-            querier.configure(vyOSApiKey, deleteDestinationNatCommand);
-        });
-        hairpinDestinationNatRules.forEach((key, value) -> {
-            String deleteDestinationNatCommand = MessageFormat.format(deleteDestinationNatRuleCommand, value);
-            querier.configure(vyOSApiKey, deleteDestinationNatCommand);
-        });
-        hairpinSourceNatRules.forEach((key, value) -> {
-            String deleteSourceNatCommand = MessageFormat.format(deleteSourceNatRuleCommand, value);
-            querier.configure(vyOSApiKey, deleteSourceNatCommand);
-        });
+    /**
+     * Runs the task on every router in parallel and waits for all of them. The
+     * first failure is thrown once every router is done, with the others
+     * suppressed.
+     */
+    private <T> Map<String, T> onEachRouter(RouterTask<T> task) throws Exception {
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for (VyOSRouter router : routers.values()) {
+            futures.put(router.getName(), executor.submit(() -> task.run(router)));
+        }
+        Map<String, T> results = new LinkedHashMap<>();
+        Exception failure = null;
+        for (Map.Entry<String, Future<T>> future : futures.entrySet()) {
+            try {
+                results.put(future.getKey(), future.getValue().get());
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
     }
-}
\ No newline at end of file
+}
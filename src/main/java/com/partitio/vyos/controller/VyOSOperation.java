@@ -0,0 +1,82 @@
+package com.partitio.vyos.controller;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * One op of a /configure call, a set or a delete of a configuration path.
+ */
+public class VyOSOperation {
+
+    public enum Type {
+        SET("set"),
+        DELETE("delete");
+
+        private final String op;
+
+        Type(String op) {
+            this.op = op;
+        }
+    }
+
+    // Fixed part of a serialized op : {"op":"delete","path":[]}
+    private static final int OVERHEAD = 26;
+
+    private final Type type;
+    private final String[] path;
+    // Part of the same rule or Service as the previous op, never sent in a
+    // different commit than it
+    private boolean joined = false;
+
+    public VyOSOperation(Type type, String[] path) {
+        this.type = type;
+        this.path = path;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String[] getPath() {
+        return path;
+    }
+
+    public boolean isJoined() {
+        return joined;
+    }
+
+    void join() {
+        joined = true;
+    }
+
+    /**
+     * Streams the op, every path segment is escaped by the generator.
+     */
+    public void writeTo(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("op", type.op);
+        generator.writeArrayFieldStart("path");
+        for (String segment : path) {
+            generator.writeString(segment);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Serialized size, ignoring escaping.
+     */
+    public int estimatedSize() {
+        int size = OVERHEAD;
+        for (String segment : path) {
+            size += segment.length() + 3;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return type.op + " " + String.join(" ", path);
+    }
+}
@@ -3,21 +3,27 @@ package com.partitio.vyos.controller;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 import org.jboss.resteasy.reactive.RestForm;
 
+import io.smallrye.mutiny.Uni;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.core.Response;
 
-@RegisterRestClient
+/**
+ * Raw VyOS REST API, built by {@link VyOSController} for each router with the
+ * connection pool, keep-alive, HTTP/2 and timeouts of the
+ * quarkus.rest-client.vyos properties. Use {@link VyOSClient} to call it.
+ */
+@RegisterRestClient(configKey = "vyos")
 public interface VyOSQuerier {
 
     @POST
     @Path("/retrieve")
     @Consumes("application/x-www-form-urlencoded")
-    public Response getConfiguration(@RestForm("key") String key, @RestForm("data") Object data);
+    public Uni<Response> getConfiguration(@RestForm("key") String key, @RestForm("data") Object data);
 
     @POST
     @Path("/configure")
     @Consumes("application/x-www-form-urlencoded")
-    public Response configure(@RestForm("key") String key, @RestForm("data") Object data);
+    public Uni<Response> configure(@RestForm("key") String key, @RestForm("data") Object data);
 }
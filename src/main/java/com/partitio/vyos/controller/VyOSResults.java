@@ -5,10 +5,35 @@ import java.util.Map;
 
 public class VyOSResults {
 
+    // Router the rules were pushed to
+    public String router;
     public String publicIP;
-    public Map<Integer, Integer> natRules = new HashMap<>();
-    public Map<Integer, Integer> hairpinNatSourceRules = new HashMap();
-    public Map<Integer, Integer> hairpinNatDestinationRules = new HashMap<>();
-    public Map<Integer, Integer> firewallRules = new HashMap<>();
-    
+    // Rule numbers by port, e.g. "53/udp", ports of a protocol share a rule
+    public Map<String, Integer> natRules = new HashMap<>();
+    public Map<String, Integer> hairpinNatSourceRules = new HashMap<>();
+    public Map<String, Integer> hairpinNatDestinationRules = new HashMap<>();
+    public Map<String, Integer> firewallRules = new HashMap<>();
+    public Map<String, Integer> firewallIPv6Rules = new HashMap<>();
+    // Why the Service was left as it is on the router, null when reconciled
+    public RuntimeException error;
+
+    public void put(RuleTag.Kind kind, String port, int ruleNumber) {
+        switch (kind) {
+            case FIREWALL:
+                firewallRules.put(port, ruleNumber);
+                break;
+            case NAT:
+                natRules.put(port, ruleNumber);
+                break;
+            case HAIRPIN_NAT:
+                hairpinNatDestinationRules.put(port, ruleNumber);
+                break;
+            case HAIRPIN_SOURCE_NAT:
+                hairpinNatSourceRules.put(port, ruleNumber);
+                break;
+            case FIREWALL_IPV6:
+                firewallIPv6Rules.put(port, ruleNumber);
+                break;
+        }
+    }
 }
@@ -0,0 +1,191 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+/**
+ * Computes the ops that undo ops already committed to VyOS, from the
+ * configuration read before they were sent. Used when a batch sent in several
+ * commits fails halfway, so that the router goes back to where it was instead
+ * of keeping half of a reconcile.
+ */
+public final class VyOSRollback {
+
+    private VyOSRollback() {
+    }
+
+    /**
+     * @param config  configuration before the ops were committed
+     * @param applied ops committed, in the order they were sent
+     * @return the ops to send, in order, to get config back
+     */
+    public static List<VyOSOperation> undo(JsonNode config, List<VyOSOperation> applied) {
+        List<VyOSOperation> undo = new ArrayList<>();
+        // Nodes removed whole, ops below them need nothing more
+        Set<List<String>> removed = new HashSet<>();
+        for (int i = applied.size() - 1; i >= 0; i--) {
+            VyOSOperation operation = applied.get(i);
+            String[] path = operation.getPath();
+            if (operation.getType() == VyOSOperation.Type.SET) {
+                undoSet(config, path, undo, removed);
+            } else {
+                undoDelete(config, path, undo);
+            }
+        }
+        joinRules(undo);
+        return undo;
+    }
+
+    /**
+     * Whether every op shows in the configuration, used to learn if a configure
+     * whose answer was lost was committed. A delete followed by sets below the
+     * same path, as when a rule is rewritten, is checked through the sets.
+     */
+    public static boolean isApplied(JsonNode config, List<VyOSOperation> operations) {
+        for (int i = 0; i < operations.size(); i++) {
+            VyOSOperation operation = operations.get(i);
+            String[] path = operation.getPath();
+            if (operation.getType() == VyOSOperation.Type.SET) {
+                if (!isSet(config, path)) {
+                    return false;
+                }
+            } else if (!isSetAgain(operations, i) && isSet(config, path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSet(JsonNode config, String[] path) {
+        if (!at(config, path, path.length).isMissingNode()) {
+            return true;
+        }
+        // The last segment may be one of the values of a leaf
+        JsonNode leaf = at(config, path, path.length - 1);
+        return !leaf.isMissingNode() && !leaf.isObject() && values(leaf).contains(path[path.length - 1]);
+    }
+
+    private static boolean isSetAgain(List<VyOSOperation> operations, int delete) {
+        List<String> deleted = Arrays.asList(operations.get(delete).getPath());
+        for (int i = delete + 1; i < operations.size(); i++) {
+            VyOSOperation operation = operations.get(i);
+            String[] path = operation.getPath();
+            if (operation.getType() == VyOSOperation.Type.SET && path.length >= deleted.size()
+                    && Arrays.asList(path).subList(0, deleted.size()).equals(deleted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Ops restoring the same rule are committed together, VyOS refuses a rule
+    // missing some of its settings
+    private static void joinRules(List<VyOSOperation> undo) {
+        for (int i = 1; i < undo.size(); i++) {
+            String[] rule = rulePath(undo.get(i).getPath());
+            if (rule != null && Arrays.equals(rule, rulePath(undo.get(i - 1).getPath()))) {
+                undo.get(i).join();
+            }
+        }
+    }
+
+    // Path of the rule an op is under, null when it is not under a rule
+    private static String[] rulePath(String[] path) {
+        for (int i = 0; i + 1 < path.length; i++) {
+            if ("rule".equals(path[i])) {
+                return Arrays.copyOf(path, i + 2);
+            }
+        }
+        return null;
+    }
+
+    private static void undoSet(JsonNode config, String[] path, List<VyOSOperation> undo,
+            Set<List<String>> removed) {
+        // The set created everything below the first missing node
+        for (int length = 1; length <= path.length; length++) {
+            List<String> prefix = Arrays.asList(path).subList(0, length);
+            if (removed.contains(prefix)) {
+                return;
+            }
+            JsonNode node = at(config, path, length);
+            if (node.isMissingNode()) {
+                removed.add(new ArrayList<>(prefix));
+                undo.add(new VyOSOperation(VyOSOperation.Type.DELETE, Arrays.copyOf(path, length)));
+                return;
+            }
+            if (!node.isObject()) {
+                // The last segment is the value of this leaf
+                if (!values(node).contains(path[path.length - 1])) {
+                    undo.add(new VyOSOperation(VyOSOperation.Type.DELETE, path));
+                    String[] leaf = Arrays.copyOf(path, length);
+                    for (String value : values(node)) {
+                        undo.add(set(leaf, value));
+                    }
+                }
+                return;
+            }
+        }
+        // Already there before, the set changed nothing
+    }
+
+    private static void undoDelete(JsonNode config, String[] path, List<VyOSOperation> undo) {
+        JsonNode node = at(config, path, path.length);
+        if (node.isMissingNode()) {
+            // Deleting one value of a leaf
+            JsonNode leaf = at(config, path, path.length - 1);
+            if (!leaf.isMissingNode() && !leaf.isObject()) {
+                undo.add(new VyOSOperation(VyOSOperation.Type.SET, path));
+            }
+            return;
+        }
+        restore(path, node, undo);
+    }
+
+    // Sets every value below the node back
+    private static void restore(String[] path, JsonNode node, List<VyOSOperation> undo) {
+        if (node.isObject()) {
+            if (node.size() == 0) {
+                undo.add(new VyOSOperation(VyOSOperation.Type.SET, path));
+            }
+            node.fields().forEachRemaining(field -> {
+                String[] child = Arrays.copyOf(path, path.length + 1);
+                child[path.length] = field.getKey();
+                restore(child, field.getValue(), undo);
+            });
+        } else {
+            for (String value : values(node)) {
+                undo.add(set(path, value));
+            }
+        }
+    }
+
+    private static VyOSOperation set(String[] leaf, String value) {
+        String[] path = Arrays.copyOf(leaf, leaf.length + 1);
+        path[leaf.length] = value;
+        return new VyOSOperation(VyOSOperation.Type.SET, path);
+    }
+
+    private static JsonNode at(JsonNode config, String[] path, int length) {
+        JsonNode node = config;
+        for (int i = 0; i < length && !node.isMissingNode(); i++) {
+            node = node.isObject() ? node.path(path[i]) : MissingNode.getInstance();
+        }
+        return node;
+    }
+
+    private static List<String> values(JsonNode leaf) {
+        List<String> values = new ArrayList<>();
+        if (leaf.isArray()) {
+            leaf.forEach(value -> values.add(value.asText()));
+        } else if (leaf.isValueNode()) {
+            values.add(leaf.asText());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,819 @@
+package com.partitio.vyos.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.fabric8.kubernetes.api.model.ServicePort;
+import io.smallrye.mutiny.TimeoutException;
+import io.smallrye.mutiny.Uni;
+
+/**
+ * Reconciles the Services assigned to one VyOS router. Each router has its own
+ * allocation pools and locks, so routers are reconciled independently.
+ */
+public class VyOSRouter {
+
+    private static final Logger LOG = Logger.getLogger(VyOSRouter.class);
+
+    private final String name;
+    private final int ruleStart;
+    private final int ruleEnd;
+    private final String firewallRulesetName;
+    private final String firewallIPv6RulesetName;
+    private final String wanInterface;
+    private final String lanInterface;
+    private final String ipRange;
+    private final int netmask;
+    private final String privateNetwork;
+    private final int batchMaxOperations;
+    private final int batchMaxBytes;
+    private final boolean ipSharing;
+    private final boolean ruleGroups;
+
+    private final VyOSClient client;
+    private final ControllerMetrics metrics;
+
+    private final VyOSAllocator allocator;
+    // VyOS configuration read on the last refresh
+    private VyOSConfigSnapshot lastSnapshot;
+    // Configuration single Service reconciles diff against. Read whole by the
+    // full reconcile, the sweep and the allocation refresh, and kept up to date
+    // with the commits of the controller in between. Null when it has to be
+    // read again, as after a failed commit
+    private VyOSConfigSnapshot cachedSnapshot;
+    // Counts the commits, a read that a commit ended during is not cached as
+    // it may predate that commit
+    private long cacheGeneration;
+    private final Object cacheLock = new Object();
+    // Single Service reconciles share the read lock, a full reconcile takes the
+    // write lock as it looks at every Service
+    private final ReentrantReadWriteLock reconcileLock = new ReentrantReadWriteLock();
+
+    public VyOSRouter(VyOSRouterSettings settings, VyOSClient client, ControllerMetrics metrics) {
+        this.name = settings.name;
+        this.ruleStart = settings.ruleStart;
+        this.ruleEnd = settings.ruleEnd;
+        this.firewallRulesetName = settings.firewallRulesetName;
+        this.firewallIPv6RulesetName = settings.firewallIPv6RulesetName;
+        this.wanInterface = settings.wanInterface;
+        this.lanInterface = settings.lanInterface;
+        this.ipRange = settings.ipRange;
+        this.netmask = settings.netmask;
+        this.privateNetwork = settings.privateNetwork;
+        this.batchMaxOperations = settings.batchMaxOperations;
+        this.batchMaxBytes = settings.batchMaxBytes;
+        this.ipSharing = settings.ipSharing;
+        this.ruleGroups = settings.ruleGroups;
+        this.client = client;
+        this.metrics = metrics;
+        // Each rule table has its own rule number namespace
+        this.allocator = new VyOSAllocator(ruleStart, ruleEnd, AddressPool.parse(ipRange, netmask));
+        for (VyOSRuleTable table : VyOSRuleTable.values()) {
+            metrics.gauge("vyos.allocator.free", "Free rule numbers and public IPs", () -> allocator.free(table),
+                    "router", name, "pool", table.name().toLowerCase());
+        }
+        metrics.gauge("vyos.allocator.free", "Free rule numbers and public IPs", allocator::freeAddresses,
+                "router", name, "pool", "address");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Brings the rules of one Service in line with what it should expose. Only
+     * the rules that differ from the cached VyOS configuration are touched,
+     * and a Service that should not be exposed anymore gets all its rules and
+     * its public IP removed. Configuration of different Services is pushed to
+     * VyOS concurrently. VyOS is only read when nothing is cached, changes
+     * made to the router by hand are picked up by the next full reconcile.
+     */
+    public VyOSResults reconcileService(DesiredService service) throws Exception {
+        // Shared IPs are picked from the ports other Services use, and group
+        // members from the IPs other Services expose, which a concurrent
+        // reconcile could be changing
+        Lock lock = ipSharing || ruleGroups ? reconcileLock.writeLock() : reconcileLock.readLock();
+        lock.lock();
+        try {
+            VyOSConfigSnapshot snapshot = cachedSnapshot();
+            VyOSResults results = apply(snapshot, List.of(service), List.of()).get(service.getName());
+            if (results.error != null) {
+                throw results.error;
+            }
+            return results;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reconciles every Service against a single read of VyOS, and removes the
+     * rules of Services that are not part of the desired state anymore. The
+     * allocation pools are rebuilt from the same read.
+     *
+     * @param removable whether the rules of a Service missing from the desired
+     *                  state belong to this controller
+     * @return the result of each desired Service
+     */
+    public Map<String, VyOSResults> reconcileAll(Collection<DesiredService> services, Predicate<String> removable)
+            throws Exception {
+        reconcileLock.writeLock().lock();
+        try {
+            VyOSConfigSnapshot snapshot = snapshot();
+            loadAllocations(snapshot);
+            List<DesiredService> all = new ArrayList<>(services);
+            Set<String> names = services.stream().map(DesiredService::getName).collect(Collectors.toSet());
+            for (String name : snapshot.serviceRules().keySet()) {
+                if (!names.contains(name) && removable.test(name)) {
+                    LOG.infof("Rules not expected anymore, removing them, router=%s service=%s", this.name, name);
+                    all.add(DesiredService.absent(name, this.name));
+                }
+            }
+            return apply(snapshot, all, List.of());
+        } finally {
+            reconcileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes, in a single commit, the rules of Services that are not live
+     * anymore and the pool addresses no controller rule uses. Rules of live
+     * Services, and of Services that are not removable, are left alone.
+     *
+     * @param liveServices names of the Services that should keep their rules
+     * @param removable    whether the rules of a Service that is not live
+     *                     belong to this controller
+     */
+    public SweepResult sweepOrphans(Set<String> liveServices, Predicate<String> removable) throws Exception {
+        reconcileLock.writeLock().lock();
+        try {
+            VyOSConfigSnapshot snapshot = snapshot();
+            Set<String> keptServices = new HashSet<>(liveServices);
+            snapshot.serviceRules().keySet().stream().filter(name -> !liveServices.contains(name))
+                    .filter(removable.negate()).forEach(keptServices::add);
+            SweepResult result = new SweepResult();
+            List<DesiredService> orphans = new ArrayList<>();
+            Set<String> usedPublicIPs = new HashSet<>();
+            snapshot.serviceRules().forEach((name, rules) -> {
+                if (keptServices.contains(name)) {
+                    rules.stream().filter(rule -> snapshot.tag(rule).getKind() == RuleTag.Kind.NAT)
+                            .forEach(rule -> usedPublicIPs.add(rule.getSetting("destination address")));
+                    return;
+                }
+                orphans.add(DesiredService.absent(name, this.name));
+                rules.forEach(rule -> result.orphanedRules.merge(rule.getTable(), 1, Integer::sum));
+            });
+            List<String> leakedAddresses = new ArrayList<>();
+            for (String address : snapshot.addresses()) {
+                String ip = address.split("/", 0)[0];
+                // Addresses of orphaned Services are removed with their rules
+                boolean ownedByOrphan = snapshot.serviceRules().entrySet().stream()
+                        .filter(entry -> !keptServices.contains(entry.getKey()))
+                        .flatMap(entry -> entry.getValue().stream())
+                        .anyMatch(rule -> ip.equals(rule.getSetting("destination address")));
+                if (allocator.isPoolAddress(ip) && !usedPublicIPs.contains(ip) && !ownedByOrphan) {
+                    leakedAddresses.add(address);
+                }
+            }
+            result.leakedAddresses = leakedAddresses.size();
+            for (String name : orphans.stream().map(DesiredService::getName).collect(Collectors.toList())) {
+                LOG.infof("Rules orphaned, removing them, router=%s service=%s", this.name, name);
+            }
+            leakedAddresses.forEach(
+                    address -> LOG.infof("Address leaked, removing it, router=%s address=%s", name, address));
+            apply(snapshot, orphans, leakedAddresses);
+            return result;
+        } finally {
+            reconcileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Diffs the desired Services against the snapshot and commits the delta in
+     * a single batch.
+     */
+    private Map<String, VyOSResults> apply(VyOSConfigSnapshot snapshot, List<DesiredService> services,
+            List<String> leakedAddresses) throws Exception {
+        Map<String, VyOSResults> results = new HashMap<>();
+        VyOSCommandBatch batch = new VyOSCommandBatch();
+        List<VyOSRule> removedRules = new ArrayList<>();
+        List<String> removedAddresses = new ArrayList<>();
+        PublicIPIndex ipIndex = new PublicIPIndex(snapshot);
+        FirewallGroups groups = new FirewallGroups(snapshot);
+        for (String address : leakedAddresses) {
+            deleteIPAddress(batch, address);
+            removedAddresses.add(address);
+            ipIndex.removeAddress(address.split("/", 0)[0]);
+        }
+        // Every new number and address is reserved before anything is sent to
+        // VyOS, and given back if the commit fails
+        AllocationReservation reservation = allocator.reserve();
+        try {
+            for (DesiredService service : services) {
+                // Everything a Service needs goes in the same commit. A Service
+                // that cannot be diffed, e.g. its requested IP is taken, is left
+                // out of the batch so that the others still go
+                batch.beginGroup();
+                ipIndex.mark();
+                groups.mark();
+                reservation.mark();
+                int removedRuleCount = removedRules.size();
+                int removedAddressCount = removedAddresses.size();
+                try {
+                    results.put(service.getName(),
+                            diff(snapshot, ipIndex, groups, service, batch, reservation, removedRules,
+                                    removedAddresses));
+                } catch (RuntimeException e) {
+                    batch.dropGroup();
+                    ipIndex.rollback();
+                    groups.rollback();
+                    reservation.rollback();
+                    removedRules.subList(removedRuleCount, removedRules.size()).clear();
+                    removedAddresses.subList(removedAddressCount, removedAddresses.size()).clear();
+                    LOG.errorf("Service left out of the batch, router=%s service=%s error=%s", name,
+                            service.getName(), e.getMessage());
+                    VyOSResults failed = new VyOSResults();
+                    failed.router = name;
+                    failed.error = e;
+                    results.put(service.getName(), failed);
+                }
+                batch.endGroup();
+            }
+            // Groups left by the rule group mode are only cleaned up once it is
+            // turned off, under the write lock
+            if (ruleGroups || reconcileLock.isWriteLockedByCurrentThread()) {
+                diffGroups(snapshot, ruleGroups ? groups.groups() : Map.of(), batch, reservation, removedRules);
+            }
+            if (batch.isEmpty()) {
+                metrics.commits(name, 0);
+                reservation.commit();
+                return results;
+            }
+            metrics.commits(name, commit(snapshot, batch));
+            committed(batch.getOperations());
+        } catch (Exception e) {
+            reservation.release();
+            invalidateSnapshot();
+            // A batch sent in several chunks may have been partially applied,
+            // VyOS tells what is really used
+            try {
+                refreshAllocations();
+            } catch (Exception refreshException) {
+                LOG.errorf(refreshException, "Allocation refresh failed, router=%s", name);
+            }
+            throw e;
+        }
+        reservation.commit();
+        // Removed rules are gone from VyOS, their numbers can be handed out again
+        removedRules.forEach(rule -> allocator.release(rule.getTable(), rule.getNumber()));
+        removedAddresses.forEach(allocator::releaseAddress);
+        return results;
+    }
+
+    private VyOSResults diff(VyOSConfigSnapshot snapshot, PublicIPIndex ipIndex, FirewallGroups groups,
+            DesiredService service, VyOSCommandBatch batch, AllocationReservation reservation, List<VyOSRule> removedRules,
+            List<String> removedAddresses) {
+        VyOSResults results = new VyOSResults();
+        String name = service.getName();
+        // Current rules of the Service, by kind and port. Duplicates left by an
+        // older run are removed
+        Map<String, VyOSRule> currentRules = new HashMap<>();
+        String currentPublicIP = null;
+        for (VyOSRule rule : snapshot.serviceRules(name)) {
+            RuleTag tag = snapshot.tag(rule);
+            if (currentRules.putIfAbsent(tag.key(), rule) != null) {
+                deleteRule(batch, rule);
+                removedRules.add(rule);
+            }
+            if (tag.getKind() == RuleTag.Kind.NAT) {
+                currentPublicIP = rule.getSetting("destination address");
+            }
+        }
+
+        // The ports of the Service are claimed again below
+        if (currentPublicIP != null) {
+            ipIndex.release(currentPublicIP, name);
+        }
+
+        if (service.isAbsent()) {
+            groups.remove(name);
+            for (VyOSRule rule : currentRules.values()) {
+                deleteRule(batch, rule);
+                removedRules.add(rule);
+            }
+            releaseAddressIfUnused(batch, ipIndex, currentPublicIP, removedAddresses);
+            return results;
+        }
+
+        // Ports of a protocol share one rule of each kind
+        Map<String, SortedSet<Integer>> portsByProtocol = new TreeMap<>();
+        for (ServicePort port : service.getPorts()) {
+            String protocol = port.getProtocol() == null ? "tcp" : port.getProtocol().toLowerCase();
+            portsByProtocol.computeIfAbsent(protocol, key -> new TreeSet<>()).add(port.getPort());
+        }
+        List<String> ports = new ArrayList<>();
+        portsByProtocol.forEach((protocol, protocolPorts) -> protocolPorts
+                .forEach(port -> ports.add(PortList.key(port, protocol))));
+        String ip = service.getIp();
+        // An IPv6 only Service has no public IP, its IPv6 address is routed
+        String publicIPAddress = null;
+        if (ip != null) {
+            String publicIPAddressCIDR = choosePublicIP(ipIndex, service, currentPublicIP, ports, reservation);
+            publicIPAddress = publicIPAddressCIDR.split("/", 0)[0];
+            ipIndex.claim(publicIPAddress, ports, name);
+            results.publicIP = publicIPAddress;
+            if (ipIndex.address(publicIPAddress).isEmpty()) {
+                createIPAddress(batch, publicIPAddressCIDR, wanInterface);
+                ipIndex.addAddress(publicIPAddressCIDR);
+            }
+        }
+        if (currentPublicIP != null && !currentPublicIP.equals(publicIPAddress)) {
+            releaseAddressIfUnused(batch, ipIndex, currentPublicIP, removedAddresses);
+        }
+
+        Map<String, String> portLists = new TreeMap<>();
+        portsByProtocol.forEach((protocol, protocolPorts) -> portLists.put(protocol, PortList.format(protocolPorts)));
+        if (ip != null && service.isReady()) {
+            groups.expose(name, ip, portLists);
+        } else {
+            groups.remove(name);
+        }
+        for (Map.Entry<String, SortedSet<Integer>> protocolPorts : portsByProtocol.entrySet()) {
+            String protocol = protocolPorts.getKey();
+            String portList = portLists.get(protocol);
+            for (RuleTag.Kind kind : RuleTag.Kind.values()) {
+                // Rules of an address family the Service does not have are
+                // removed below with the other leftovers
+                boolean ipv6Kind = kind == RuleTag.Kind.FIREWALL_IPV6;
+                if ((ipv6Kind && service.getIpv6() == null) || (!ipv6Kind && ip == null)) {
+                    continue;
+                }
+                // The group rules accept the Service instead, one without ready
+                // backends gets its own reject rule. IPv6 rules are never grouped
+                if (ruleGroups && kind == RuleTag.Kind.FIREWALL && service.isReady()) {
+                    continue;
+                }
+                VyOSRule current = currentRules.remove(new RuleTag(kind, name, protocol).key());
+                int number = current != null ? current.getNumber() : 0;
+                VyOSRule desired = desiredRule(kind, number, publicIPAddress, ip, protocol, portList, service);
+                if (current != null && current.hasSameSettings(desired)) {
+                    // Already as expected, nothing to send
+                } else if (current != null) {
+                    // Rewritten in place, under the same number
+                    deleteRule(batch, current);
+                    batch.setRule(rulePath(kind.getTable(), number), desired);
+                } else {
+                    // Skip numbers the pool did not know about yet
+                    do {
+                        number = reservation.ruleNumber(kind.getTable());
+                    } while (snapshot.rules(kind.getTable()).containsKey(number));
+                    batch.setRule(rulePath(kind.getTable(), number),
+                            desiredRule(kind, number, publicIPAddress, ip, protocol, portList, service));
+                }
+                for (Integer port : protocolPorts.getValue()) {
+                    results.put(kind, PortList.key(port, protocol), number);
+                }
+            }
+        }
+        // Whatever is left belongs to ports the Service does not have anymore
+        for (VyOSRule rule : currentRules.values()) {
+            deleteRule(batch, rule);
+            removedRules.add(rule);
+        }
+        return results;
+    }
+
+    /**
+     * Brings the address groups, port groups and group firewall rules in line
+     * with the desired groups. Rules are deleted before their groups and
+     * created after them, VyOS refusing a rule that references a missing
+     * group.
+     */
+    private void diffGroups(VyOSConfigSnapshot snapshot, Map<String, FirewallGroups.Group> groups,
+            VyOSCommandBatch batch, AllocationReservation reservation, List<VyOSRule> removedRules) {
+        Set<String> names = new TreeSet<>(snapshot.addressGroups().keySet());
+        names.addAll(snapshot.portGroups().keySet());
+        names.addAll(snapshot.groupRules().keySet());
+        names.removeAll(groups.keySet());
+        for (String groupName : names) {
+            batch.beginGroup();
+            LOG.infof("Removing firewall group, router=%s group=%s", name, groupName);
+            VyOSRule rule = snapshot.groupRules().get(groupName);
+            if (rule != null) {
+                deleteRule(batch, rule);
+                removedRules.add(rule);
+            }
+            if (snapshot.addressGroups().containsKey(groupName)) {
+                batch.delete("firewall", "group", "address-group", groupName);
+            }
+            if (snapshot.portGroups().containsKey(groupName)) {
+                batch.delete("firewall", "group", "port-group", groupName);
+            }
+            batch.endGroup();
+        }
+
+        for (Map.Entry<String, FirewallGroups.Group> entry : groups.entrySet()) {
+            // A rule is committed with the groups it references
+            batch.beginGroup();
+            String groupName = entry.getKey();
+            FirewallGroups.Group group = entry.getValue();
+            Set<String> currentAddresses = snapshot.addressGroups().getOrDefault(groupName, Set.of());
+            for (String address : group.addresses) {
+                if (!currentAddresses.contains(address)) {
+                    batch.set("firewall", "group", "address-group", groupName, "address", address);
+                }
+            }
+            for (String address : currentAddresses) {
+                if (!group.addresses.contains(address)) {
+                    batch.delete("firewall", "group", "address-group", groupName, "address", address);
+                }
+            }
+            Set<String> currentPorts = snapshot.portGroups().getOrDefault(groupName, Set.of());
+            Set<String> ports = FirewallGroups.ports(group.ports);
+            for (String port : ports) {
+                if (!currentPorts.contains(port)) {
+                    batch.set("firewall", "group", "port-group", groupName, "port", port);
+                }
+            }
+            for (String port : currentPorts) {
+                if (!ports.contains(port)) {
+                    batch.delete("firewall", "group", "port-group", groupName, "port", port);
+                }
+            }
+
+            VyOSRule current = snapshot.groupRules().get(groupName);
+            int number = current != null ? current.getNumber() : 0;
+            VyOSRule desired = VyOSRules.firewallGroup(number, group.protocol, groupName);
+            if (current != null && current.hasSameSettings(desired)) {
+                continue;
+            }
+            if (current != null) {
+                deleteRule(batch, current);
+            } else {
+                do {
+                    number = reservation.ruleNumber(VyOSRuleTable.FIREWALL);
+                } while (snapshot.rules(VyOSRuleTable.FIREWALL).containsKey(number));
+            }
+            LOG.infof("Adding firewall group, router=%s group=%s protocol=%s ports=%s", name, groupName,
+                    group.protocol, group.ports);
+            batch.setRule(rulePath(VyOSRuleTable.FIREWALL, number),
+                    VyOSRules.firewallGroup(number, group.protocol, groupName));
+        }
+        batch.endGroup();
+    }
+
+    /**
+     * Picks the public IP of a Service, in CIDR notation: the one it asks for,
+     * else the one it has, else with IP sharing a used IP where its ports are
+     * free, else a new one from the pool.
+     */
+    private String choosePublicIP(PublicIPIndex ipIndex, DesiredService service, String currentPublicIP,
+            List<String> ports, AllocationReservation reservation) {
+        String name = service.getName();
+        String requestedPublicIP = service.getRequestedPublicIP();
+        if (requestedPublicIP != null) {
+            // A pinned Service never moves, even when its ports are taken on
+            // the IP it already has
+            boolean pinnedToCurrent = requestedPublicIP.equals(currentPublicIP);
+            if (pinnedToCurrent && ipIndex.isFree(currentPublicIP, ports, name)) {
+                return ipIndex.address(currentPublicIP).orElse(currentPublicIP + "/" + netmask);
+            }
+            if (!pinnedToCurrent && ipIndex.address(requestedPublicIP).isEmpty()) {
+                return reservation.address(requestedPublicIP);
+            }
+            if (!pinnedToCurrent && ipSharing && ipIndex.isUsed(requestedPublicIP)
+                    && ipIndex.isFree(requestedPublicIP, ports, name)) {
+                return ipIndex.address(requestedPublicIP).get();
+            }
+            throw new IllegalStateException("Public IP " + requestedPublicIP + " requested by " + name
+                    + " is already in use on VyOS router " + this.name);
+        }
+        if (currentPublicIP != null && ipIndex.isFree(currentPublicIP, ports, name)) {
+            return ipIndex.address(currentPublicIP).orElse(currentPublicIP + "/" + netmask);
+        }
+        if (ipSharing) {
+            for (String ip : ipIndex.usedIPs()) {
+                if (allocator.isPoolAddress(ip) && ipIndex.address(ip).isPresent()
+                        && ipIndex.isFree(ip, ports, name)) {
+                    return ipIndex.address(ip).get();
+                }
+            }
+        }
+        // Skip addresses the pool did not know about yet
+        String publicIPAddressCIDR;
+        do {
+            publicIPAddressCIDR = reservation.address();
+        } while (ipIndex.address(publicIPAddressCIDR.split("/", 0)[0]).isPresent());
+        return publicIPAddressCIDR;
+    }
+
+    /**
+     * Removes a public IP from the WAN interface once no Service uses it.
+     */
+    private void releaseAddressIfUnused(VyOSCommandBatch batch, PublicIPIndex ipIndex, String ip,
+            List<String> removedAddresses) {
+        if (ip == null || ipIndex.isUsed(ip)) {
+            return;
+        }
+        Optional<String> address = ipIndex.address(ip);
+        if (address.isPresent()) {
+            deleteIPAddress(batch, address.get());
+            ipIndex.removeAddress(ip);
+            removedAddresses.add(ip);
+        }
+    }
+
+    private VyOSRule desiredRule(RuleTag.Kind kind, int number, String publicIPAddress, String ip, String protocol,
+            String ports, DesiredService service) {
+        String name = service.getName();
+        switch (kind) {
+            case FIREWALL:
+                return VyOSRules.firewall(number, ip, protocol, ports, name, service.isReady());
+            case NAT:
+                return VyOSRules.destinationNat(number, publicIPAddress, ip, protocol, ports, wanInterface, name);
+            case HAIRPIN_NAT:
+                return VyOSRules.hairpinDestinationNat(number, publicIPAddress, ip, protocol, ports, lanInterface,
+                        name);
+            case HAIRPIN_SOURCE_NAT:
+                return VyOSRules.hairpinSourceNat(number, privateNetwork, ip, protocol, ports, lanInterface, name);
+            case FIREWALL_IPV6:
+                return VyOSRules.firewallIPv6(number, service.getIpv6(), protocol, ports, name, service.isReady());
+            default:
+                throw new IllegalArgumentException("Unknown rule kind " + kind);
+        }
+    }
+
+    private String[] rulePath(VyOSRuleTable table, int number) {
+        switch (table) {
+            case FIREWALL:
+                return new String[] { "firewall", "name", firewallRulesetName, "rule", Integer.toString(number) };
+            case FIREWALL_IPV6:
+                return new String[] { "firewall", "ipv6-name", firewallIPv6RulesetName, "rule",
+                        Integer.toString(number) };
+            case DESTINATION_NAT:
+                return new String[] { "nat", "destination", "rule", Integer.toString(number) };
+            case SOURCE_NAT:
+                return new String[] { "nat", "source", "rule", Integer.toString(number) };
+            default:
+                throw new IllegalArgumentException("Unknown rule table " + table);
+        }
+    }
+
+    private void deleteRule(VyOSCommandBatch batch, VyOSRule rule) {
+        batch.delete(rulePath(rule.getTable(), rule.getNumber()));
+    }
+
+    private void createIPAddress(VyOSCommandBatch batch, String publicIPAddress, String wanInterface) {
+        LOG.infof("Adding address, router=%s address=%s interface=%s", name, publicIPAddress, wanInterface);
+        batch.set("interfaces", "ethernet", wanInterface, "address", publicIPAddress);
+    }
+
+    private void deleteIPAddress(VyOSCommandBatch batch, String address) {
+        batch.delete("interfaces", "ethernet", wanInterface, "address", address);
+    }
+
+    /**
+     * Sends the batch, as a single commit when it fits. When a batch sent in
+     * several commits fails halfway, the commits already applied are undone
+     * from the snapshot, so that the router is left as it was before the
+     * reconcile.
+     *
+     * @return the number of VyOS commits sent
+     */
+    private int commit(VyOSConfigSnapshot snapshot, VyOSCommandBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<List<VyOSOperation>> chunks = batch.chunks(batchMaxOperations, batchMaxBytes);
+        if (chunks.size() > 1) {
+            LOG.infof("Batch too large for one commit, router=%s ops=%d commits=%d", name, batch.size(),
+                    chunks.size());
+        }
+        List<VyOSOperation> applied = new ArrayList<>();
+        int commits = 0;
+        try {
+            for (List<VyOSOperation> chunk : chunks) {
+                commits += configure(chunk, applied);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!applied.isEmpty()) {
+                rollback(snapshot, applied);
+            }
+            throw e;
+        }
+        return commits;
+    }
+
+    private void rollback(VyOSConfigSnapshot snapshot, List<VyOSOperation> applied) {
+        VyOSCommandBatch undo = new VyOSCommandBatch();
+        undo.getOperations().addAll(VyOSRollback.undo(snapshot.config(), applied));
+        LOG.warnf("Batch failed after a partial commit, rolling back, router=%s appliedOps=%d undoOps=%d", name,
+                applied.size(), undo.size());
+        try {
+            for (List<VyOSOperation> chunk : undo.chunks(batchMaxOperations, batchMaxBytes)) {
+                configure(chunk, new ArrayList<>());
+            }
+        } catch (IOException | RuntimeException e) {
+            // The allocations are reloaded from VyOS, the next reconcile diffs
+            // whatever is left
+            LOG.errorf("Rollback failed, router=%s error=%s", name, e.getMessage());
+        }
+    }
+
+    /**
+     * @param applied collects the ops of the commits that went through
+     */
+    private int configure(List<VyOSOperation> chunk, List<VyOSOperation> applied) throws IOException {
+        String payload = VyOSCommandBatch.toJson(chunk);
+        try {
+            await("configure", client.configure(payload));
+            applied.addAll(chunk);
+            return 1;
+        } catch (VyOSApiException e) {
+            if (e.mayHaveBeenApplied()) {
+                return configureOutcome(chunk, applied, e);
+            }
+            // The payload is too large for the router, retry in smaller chunks.
+            // A single rule or Service cannot be cut
+            List<List<VyOSOperation>> halves = VyOSCommandBatch.split(chunk);
+            if (!e.isPayloadTooLarge() || halves.size() < 2) {
+                throw e;
+            }
+            int commits = 0;
+            for (List<VyOSOperation> half : halves) {
+                commits += configure(half, applied);
+            }
+            return commits;
+        }
+    }
+
+    /**
+     * Looks at the configuration to learn whether a configure whose answer was
+     * lost went through. It is never sent again: a replay of a commit already
+     * applied fails on its deletes, and the next reconcile diffs from VyOS
+     * anyway.
+     *
+     * @return 1 when the chunk was committed
+     */
+    private int configureOutcome(List<VyOSOperation> chunk, List<VyOSOperation> applied, VyOSApiException failure) {
+        JsonNode config;
+        try {
+            config = retrieve("[]");
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+            throw failure;
+        }
+        if (!VyOSRollback.isApplied(config, chunk)) {
+            throw failure;
+        }
+        LOG.warnf("Configure answer lost but the commit went through, router=%s ops=%d error=%s", name,
+                chunk.size(), failure.getMessage());
+        applied.addAll(chunk);
+        return 1;
+    }
+
+    /**
+     * Reads the firewall rulesets, the NAT rules and the WAN addresses in a single
+     * showConfig of the whole configuration.
+     */
+    private VyOSConfigSnapshot snapshot() {
+        long generation;
+        synchronized (cacheLock) {
+            generation = cacheGeneration;
+        }
+        VyOSConfigSnapshot snapshot = new VyOSConfigSnapshot(retrieve("[]"), firewallRulesetName,
+                firewallIPv6RulesetName, wanInterface);
+        synchronized (cacheLock) {
+            if (generation == cacheGeneration) {
+                cachedSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    private VyOSConfigSnapshot cachedSnapshot() {
+        synchronized (cacheLock) {
+            if (cachedSnapshot != null) {
+                return cachedSnapshot;
+            }
+        }
+        return snapshot();
+    }
+
+    // Concurrent reconciles commit in any order, each applies its own ops to
+    // the latest cached configuration
+    private void committed(List<VyOSOperation> operations) {
+        synchronized (cacheLock) {
+            cacheGeneration++;
+            if (cachedSnapshot != null) {
+                cachedSnapshot = cachedSnapshot.after(operations);
+            }
+        }
+    }
+
+    private void invalidateSnapshot() {
+        synchronized (cacheLock) {
+            cacheGeneration++;
+            cachedSnapshot = null;
+        }
+    }
+
+    /**
+     * Rebuilds the allocation pools from the firewall rulesets, NAT and WAN
+     * interface address trees of VyOS, which stays the source of truth.
+     */
+    public void refreshAllocations() {
+        loadAllocations(snapshot());
+    }
+
+    private synchronized void loadAllocations(VyOSConfigSnapshot snapshot) {
+        Map<VyOSRuleTable, Set<Integer>> usedRuleNumbers = new EnumMap<>(VyOSRuleTable.class);
+        for (VyOSRuleTable table : VyOSRuleTable.values()) {
+            usedRuleNumbers.put(table, snapshot.rules(table).keySet());
+        }
+        allocator.reload(usedRuleNumbers, snapshot.addresses());
+        this.lastSnapshot = snapshot;
+        LOG.infof("Allocations loaded, router=%s freeFirewallRules=%d freeDestinationNatRules=%d "
+                + "freeSourceNatRules=%d freeFirewallIPv6Rules=%d freePublicIPs=%d", name,
+                allocator.free(VyOSRuleTable.FIREWALL), allocator.free(VyOSRuleTable.DESTINATION_NAT),
+                allocator.free(VyOSRuleTable.SOURCE_NAT), allocator.free(VyOSRuleTable.FIREWALL_IPV6),
+                allocator.freeAddresses());
+    }
+
+    /**
+     * Compares the rule numbers claimed by Services with the rules found in VyOS
+     * on the last refresh, and reports numbers claimed twice, numbers claimed but
+     * missing from VyOS, and controller rules no Service claims anymore.
+     *
+     * @param claims rule numbers claimed by each Service, by table
+     * @return the number of issues found
+     */
+    public synchronized int checkAllocations(Map<String, Map<VyOSRuleTable, Set<Integer>>> claims) {
+        int issues = 0;
+        for (VyOSRuleTable table : VyOSRuleTable.values()) {
+            Map<Integer, String> owners = new HashMap<>();
+            Map<Integer, VyOSRule> rules = lastSnapshot.rules(table);
+            for (Map.Entry<String, Map<VyOSRuleTable, Set<Integer>>> claim : claims.entrySet()) {
+                for (Integer number : claim.getValue().getOrDefault(table, Set.of())) {
+                    String previousOwner = owners.put(number, claim.getKey());
+                    if (previousOwner != null && !previousOwner.equals(claim.getKey())) {
+                        issues++;
+                        LOG.warnf("Overlapping rule, router=%s table=%s rule=%d service=%s otherService=%s", name,
+                                table, number, previousOwner, claim.getKey());
+                    }
+                    if (!rules.containsKey(number)) {
+                        issues++;
+                        LOG.warnf("Claimed rule missing from VyOS, router=%s table=%s rule=%d service=%s", name,
+                                table, number, claim.getKey());
+                    }
+                }
+            }
+            for (VyOSRule rule : rules.values()) {
+                if (lastSnapshot.tag(rule) != null && !owners.containsKey(rule.getNumber())) {
+                    issues++;
+                    LOG.warnf("Orphaned rule, router=%s table=%s rule=%d description=%s", name, table,
+                            rule.getNumber(), rule.getDescription());
+                }
+            }
+        }
+        LOG.infof("Allocation check done, router=%s issues=%d", name, issues);
+        return issues;
+    }
+
+    private JsonNode retrieve(String path) {
+        return await("retrieve", client.retrieve(path));
+    }
+
+    /**
+     * Reconciles run on the queue workers, which wait for the answer. A call
+     * still running after the await timeout may yet reach the router, so it
+     * fails like a lost answer.
+     */
+    private <T> T await(String op, Uni<T> call) {
+        try {
+            return call.await().atMost(client.getAwaitTimeout());
+        } catch (TimeoutException e) {
+            throw new VyOSApiException(op, 0, true, false,
+                    "No answer from VyOS within " + client.getAwaitTimeout().toMillis() + " ms", e);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.partitio.vyos.controller;
+
+/**
+ * Settings of one VyOS router. Each router has its own rule range and public
+ * IP range, so that Services can be spread over several routers.
+ */
+public class VyOSRouterSettings {
+
+    public String name;
+    public String apiKey;
+    public int ruleStart;
+    public int ruleEnd;
+    public String firewallRulesetName;
+    // Ruleset of the IPv6 load balancer IPs, which are routed without NAT
+    public String firewallIPv6RulesetName;
+    public String wanInterface;
+    public String lanInterface;
+    public String ipRange;
+    public int netmask;
+    public String privateNetwork;
+    public int batchMaxOperations;
+    public int batchMaxBytes;
+    // Pack Services on the same public IPs when their ports do not overlap
+    public boolean ipSharing;
+    // Accept Services through address and port groups, one firewall rule per
+    // distinct port list
+    public boolean ruleGroups;
+}
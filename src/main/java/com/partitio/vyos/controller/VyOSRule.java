@@ -0,0 +1,76 @@
+package com.partitio.vyos.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A firewall or NAT rule, either read from VyOS or built by the controller.
+ * Settings are flattened, the key being the path below the rule number, e.g.
+ * "destination port" for firewall rule 200 destination port 80.
+ */
+public class VyOSRule {
+
+    private final VyOSRuleTable table;
+    private final int number;
+    private final Map<String, String> settings;
+
+    public VyOSRule(VyOSRuleTable table, int number, Map<String, String> settings) {
+        this.table = table;
+        this.number = number;
+        this.settings = settings;
+    }
+
+    /**
+     * Reads a rule from the showConfig output of VyOS.
+     */
+    public static VyOSRule fromConfig(VyOSRuleTable table, int number, JsonNode rule) {
+        Map<String, String> settings = new HashMap<>();
+        flatten("", rule, settings);
+        return new VyOSRule(table, number, settings);
+    }
+
+    private static void flatten(String prefix, JsonNode node, Map<String, String> settings) {
+        if (node.isObject()) {
+            if (node.size() == 0 && !prefix.isEmpty()) {
+                // Valueless node such as "disable"
+                settings.put(prefix, "");
+            }
+            node.fields().forEachRemaining(field -> flatten(
+                    prefix.isEmpty() ? field.getKey() : prefix + " " + field.getKey(), field.getValue(), settings));
+        } else if (node.isArray()) {
+            List<String> values = new ArrayList<>();
+            node.forEach(value -> values.add(value.asText()));
+            settings.put(prefix, String.join(",", values));
+        } else {
+            settings.put(prefix, node.asText());
+        }
+    }
+
+    public VyOSRuleTable getTable() {
+        return table;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public Map<String, String> getSettings() {
+        return settings;
+    }
+
+    public String getDescription() {
+        return settings.get("description");
+    }
+
+    public String getSetting(String key) {
+        return settings.get(key);
+    }
+
+    public boolean hasSameSettings(VyOSRule other) {
+        return other != null && table == other.table && settings.equals(other.settings);
+    }
+}
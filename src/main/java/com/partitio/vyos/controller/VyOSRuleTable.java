@@ -0,0 +1,13 @@
+package com.partitio.vyos.controller;
+
+/**
+ * VyOS rule tables the controller writes to. Each table has its own rule
+ * number namespace.
+ */
+public enum VyOSRuleTable {
+    FIREWALL,
+    DESTINATION_NAT,
+    SOURCE_NAT,
+    // IPv6 ruleset, IPv6 Services are routed and have no NAT rules
+    FIREWALL_IPV6
+}
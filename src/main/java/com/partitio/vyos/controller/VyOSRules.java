@@ -0,0 +1,104 @@
+package com.partitio.vyos.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds the rules the controller creates for the ports of one protocol of a
+ * Service. Ports are given as a VyOS port list so that a single rule number
+ * covers them all, and descriptions follow the format {@link RuleTag} parses.
+ */
+public final class VyOSRules {
+
+    private VyOSRules() {
+    }
+
+    public static VyOSRule firewall(int number, String ip, String protocol, String ports, String serviceName) {
+        return firewall(number, ip, protocol, ports, serviceName, true);
+    }
+
+    /**
+     * @param accept false to reject the traffic of a Service without ready
+     *               backends, clients are refused at once instead of timing out
+     */
+    public static VyOSRule firewall(int number, String ip, String protocol, String ports, String serviceName,
+            boolean accept) {
+        return firewall(RuleTag.Kind.FIREWALL, number, ip, protocol, ports, serviceName, accept);
+    }
+
+    /**
+     * Firewall rule of the IPv6 ruleset. IPv6 load balancer IPs are routed to,
+     * so the rule matches the IP of the Service itself.
+     */
+    public static VyOSRule firewallIPv6(int number, String ip, String protocol, String ports, String serviceName,
+            boolean accept) {
+        return firewall(RuleTag.Kind.FIREWALL_IPV6, number, ip, protocol, ports, serviceName, accept);
+    }
+
+    private static VyOSRule firewall(RuleTag.Kind kind, int number, String ip, String protocol, String ports,
+            String serviceName, boolean accept) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("action", accept ? "accept" : "reject");
+        settings.put("destination address", ip);
+        settings.put("destination port", ports);
+        settings.put("protocol", protocol);
+        settings.put("description", kind.getPrefix() + " " + serviceName + ", IP : " + ip + ", protocol : "
+                + protocol);
+        return new VyOSRule(kind.getTable(), number, settings);
+    }
+
+    /**
+     * Firewall rule of the rule group mode, accepting the ports of the port
+     * group on the addresses of the address group, both named groupName.
+     */
+    public static VyOSRule firewallGroup(int number, String protocol, String groupName) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("action", "accept");
+        settings.put("destination group address-group", groupName);
+        settings.put("destination group port-group", groupName);
+        settings.put("protocol", protocol);
+        settings.put("description", FirewallGroups.RULE_PREFIX + " " + groupName);
+        return new VyOSRule(VyOSRuleTable.FIREWALL, number, settings);
+    }
+
+    public static VyOSRule destinationNat(int number, String publicIP, String ip, String protocol, String ports,
+            String inboundInterface, String serviceName) {
+        return destinationNat(RuleTag.Kind.NAT, number, publicIP, ip, protocol, ports, inboundInterface,
+                serviceName);
+    }
+
+    public static VyOSRule hairpinDestinationNat(int number, String publicIP, String ip, String protocol,
+            String ports, String inboundInterface, String serviceName) {
+        return destinationNat(RuleTag.Kind.HAIRPIN_NAT, number, publicIP, ip, protocol, ports, inboundInterface,
+                serviceName);
+    }
+
+    // Without a translation port the destination port is kept, which is what
+    // every port of the list needs
+    private static VyOSRule destinationNat(RuleTag.Kind kind, int number, String publicIP, String ip,
+            String protocol, String ports, String inboundInterface, String serviceName) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("destination port", ports);
+        settings.put("destination address", publicIP);
+        settings.put("translation address", ip);
+        settings.put("inbound-interface", inboundInterface);
+        settings.put("protocol", protocol);
+        settings.put("description", kind.getPrefix() + " " + serviceName + ", IP : " + ip + ", protocol : "
+                + protocol + ", publicIP : " + publicIP);
+        return new VyOSRule(VyOSRuleTable.DESTINATION_NAT, number, settings);
+    }
+
+    public static VyOSRule hairpinSourceNat(int number, String privateNetwork, String ip, String protocol,
+            String ports, String outboundInterface, String serviceName) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("source address", privateNetwork);
+        settings.put("destination port", ports);
+        settings.put("destination address", ip);
+        settings.put("translation address", "masquerade");
+        settings.put("outbound-interface", outboundInterface);
+        settings.put("protocol", protocol);
+        settings.put("description", RuleTag.Kind.HAIRPIN_SOURCE_NAT.getPrefix() + " " + serviceName + ", IP : "
+                + ip + ", protocol : " + protocol + ", private network : " + privateNetwork);
+        return new VyOSRule(VyOSRuleTable.SOURCE_NAT, number, settings);
+    }
+}